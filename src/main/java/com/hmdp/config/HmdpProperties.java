@@ -0,0 +1,351 @@
+package com.hmdp.config;
+
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.util.StrUtil;
+import lombok.Data;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * 项目自定义配置，对应 application.yaml 中的 hmdp.*
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp")
+public class HmdpProperties {
+
+    /**
+     * 节点标识，集群中每个节点必须唯一；为空时使用 主机名:端口
+     */
+    private String nodeId;
+
+    /**
+     * 秒杀相关配置
+     */
+    private Seckill seckill = new Seckill();
+
+    /**
+     * 缓存相关配置
+     */
+    private Cache cache = new Cache();
+
+    /**
+     * 全局ID生成配置
+     */
+    private Id id = new Id();
+
+    @Value("${server.port:8080}")
+    private int serverPort;
+
+    public String getNodeId() {
+        if (StrUtil.isBlank(nodeId)) {
+            nodeId = NetUtil.getLocalHostName() + ":" + serverPort;
+        }
+        return nodeId;
+    }
+
+    @Data
+    public static class Cache {
+        /**
+         * CacheClient 的进程内一级缓存
+         */
+        private Local local = new Local();
+        /**
+         * 防止缓存穿透的布隆过滤器
+         */
+        private Bloom bloom = new Bloom();
+        /**
+         * 缓存值的编码方式：json，hutool JSON；kryo，Kryo二进制，数据存放在带 kryo2: 前缀的key中
+         */
+        private String codec = "json";
+        /**
+         * 逻辑过期的数据是否按 过期时间头部+数据 的格式写入，读取时两种格式都支持；
+         * 滚动升级时先设为false，全部节点升级后再打开，避免旧节点读到新格式
+         */
+        private boolean logicalExpireHeader = true;
+    }
+
+    @Data
+    public static class Bloom {
+        /**
+         * 是否开启布隆过滤器，开启后判断id不存在时不再访问Redis和数据库。
+         * 重建之后不经过 add 写入数据库的数据，只有数字自增id不会被误判；默认关闭
+         */
+        private boolean enabled = false;
+        /**
+         * 每个key前缀预计的元素数，实际数据量的两倍更大时按两倍计算
+         */
+        private long expectedInsertions = 100000;
+        /**
+         * 误判率，越小占用内存越多
+         */
+        private double fpp = 0.01;
+        /**
+         * 按数据库重建的间隔(毫秒)，删除的数据在重建后才会从过滤器中去掉
+         */
+        private long rebuildInterval = 3600000;
+    }
+
+    @Data
+    public static class Local {
+        /**
+         * 是否开启一级缓存，开启后先查本地再查Redis
+         */
+        private boolean enabled = false;
+        /**
+         * 最多缓存的key数，超过后淘汰最久未使用的
+         */
+        private int maxSize = 10000;
+        /**
+         * 有效期，也是没有收到失效通知的节点读到旧数据的最长时间
+         */
+        private Duration ttl = Duration.ofSeconds(30);
+        /**
+         * 输出各key前缀命中率的间隔(毫秒)
+         */
+        private long statsInterval = 60000;
+    }
+
+    @Data
+    public static class Id {
+        /**
+         * ID生成方式：redis，时间戳+Redis自增序列号；snowflake，雪花算法，生成ID时不访问Redis
+         */
+        private String mode = "redis";
+        /**
+         * 每次从Redis申请的序列号号段大小，小于等于1表示每个ID都访问一次Redis
+         */
+        private int segmentSize = 1000;
+        /**
+         * snowflake模式下workerId租约的有效期，每隔三分之一有效期续租一次
+         */
+        private Duration workerLeaseTtl = Duration.ofMinutes(10);
+        /**
+         * snowflake模式下允许的最大时钟回拨，回拨期间沿用上一个ID的时间继续生成，超过后生成ID失败
+         */
+        private Duration maxClockBackward = Duration.ofSeconds(5);
+    }
+
+    @Data
+    public static class Seckill {
+        /**
+         * 新建秒杀券默认的库存分片数，1表示不分片；秒杀券也可以在新增时单独指定，分片数保存在 tb_seckill_voucher 中。
+         * 所有分片都在同一个 seckill.lua 中读写，单个Redis实例上分片不会带来并行，反而每个请求最多多N次GET；
+         * 只有各分片key带上不同的hash tag、由不同的请求分别访问时才有意义，一般保持1
+         */
+        private int stockShards = 1;
+        /**
+         * 新建秒杀券默认的一人一单记录方式：0，Set；1，按用户id索引的Bitmap。
+         * 用户id是连续自增的，Bitmap每个用户只占1bit，买家很多时比Set节省大量内存
+         */
+        private int dedupMode = 0;
+        /**
+         * 本地售罄标记的有效期，过期后重新到Redis判断；
+         * 售罄消息晚于补货的清除消息到达时，节点最多在这段时间内误拒请求
+         */
+        private Duration soldOutTtl = Duration.ofSeconds(5);
+        /**
+         * stream.orders 订单消费者配置
+         */
+        private Order order = new Order();
+        /**
+         * 节点本地库存租约配置
+         */
+        private StockLease stockLease = new StockLease();
+        /**
+         * 秒杀接口准入控制配置
+         */
+        private Admission admission = new Admission();
+        /**
+         * 秒杀预热配置
+         */
+        private Preheat preheat = new Preheat();
+        /**
+         * Redis与数据库库存对账配置
+         */
+        private Reconcile reconcile = new Reconcile();
+    }
+
+    @Data
+    public static class Reconcile {
+        /**
+         * 是否开启对账
+         */
+        private boolean enabled = true;
+        /**
+         * 是否自动修复，关闭时只输出差异。修复以数据库为准，
+         * 并且只修复没有未处理完的订单消息、连续两次对账结果相同的差异
+         */
+        private boolean repair = false;
+        /**
+         * 对账间隔(毫秒)
+         */
+        private long interval = 60000;
+        /**
+         * 每隔多少次增量对账做一次全量对账，全量对账覆盖所有正在进行的秒杀券，
+         * 用来发现数据库没有变化、只有Redis变化的差异(比如丢失的订单消息)
+         */
+        private int fullScanEvery = 10;
+        /**
+         * 每批对账的秒杀券数量，每批一次管道读取Redis、一次GROUP BY查询订单数
+         */
+        private int batchSize = 500;
+    }
+
+    @Data
+    public static class Preheat {
+        /**
+         * 是否开启秒杀预热
+         */
+        private boolean enabled = true;
+        /**
+         * 预热多长时间之内开始的秒杀
+         */
+        private Duration lookahead = Duration.ofMinutes(5);
+        /**
+         * 扫描间隔(毫秒)
+         */
+        private long interval = 10000;
+    }
+
+    @Data
+    public static class Admission {
+        /**
+         * 单节点秒杀接口同时处理的最大请求数，小于等于0表示不限制
+         */
+        private int maxConcurrent = 200;
+        /**
+         * 秒杀券没有单独指定限流值时，单节点每秒允许进入的请求数，小于等于0表示不限流；只对预热过的券限流
+         */
+        private int defaultRateLimit = 0;
+    }
+
+    @Data
+    public static class StockLease {
+        /**
+         * 是否开启库存租约，开启后节点成批租用库存并在本地扣减
+         */
+        private boolean enabled = false;
+        /**
+         * 每次从Redis租用的库存数量
+         */
+        private int chunkSize = 50;
+        /**
+         * 租约超过这个时间没有卖出库存就归还给Redis
+         */
+        private Duration idleTimeout = Duration.ofSeconds(30);
+        /**
+         * 节点心跳 seckill:lease-node:{节点标识} 的有效期，每隔三分之一有效期续期一次；
+         * 心跳过期的节点视为失联，其它节点把它持有的租约库存归还给Redis
+         */
+        private Duration nodeTtl = Duration.ofSeconds(30);
+    }
+
+    @Data
+    public static class Order {
+        /**
+         * 每个节点消费订单的线程数，每个线程都是消费者组里一个独立的消费者
+         */
+        private int workers = Runtime.getRuntime().availableProcessors();
+        /**
+         * 每次 XREADGROUP 最多读取的订单数，大于1时开启批量落库
+         */
+        private int batchSize = 1;
+        /**
+         * 批次未满时最多等待的时间，用延迟换取数据库吞吐
+         */
+        private Duration batchLinger = Duration.ofMillis(50);
+        /**
+         * 单条下单的一人一单保证方式：lock，Redisson用户锁 + 查询已有订单后插入；
+         * ignore，依赖 tb_voucher_order 的唯一索引(user_id, voucher_id, active)，INSERT IGNORE，不加锁也不查询
+         */
+        private String insertMode = "lock";
+        /**
+         * 订单处理结果 order:status:{订单id} 的有效期，过期后查询订单结果改为查数据库
+         */
+        private Duration statusTtl = Duration.ofMinutes(30);
+        /**
+         * 超时未确认消息的恢复配置
+         */
+        private Recovery recovery = new Recovery();
+        /**
+         * stream.orders 裁剪配置
+         */
+        private Trim trim = new Trim();
+        /**
+         * 超时未支付订单的取消配置
+         */
+        private Cancel cancel = new Cancel();
+    }
+
+    @Data
+    public static class Cancel {
+        /**
+         * 是否自动取消超时未支付的订单
+         */
+        private boolean enabled = true;
+        /**
+         * 支付期限，从下单时间开始计算，超时未支付的订单取消并归还库存
+         */
+        private Duration payTimeout = Duration.ofMinutes(15);
+        /**
+         * 扫描到期订单的间隔(毫秒)
+         */
+        private long interval = 1000;
+        /**
+         * 每批取消的订单数，每批一次查询、一次更新订单状态、每张券一次归还库存
+         */
+        private int batchSize = 1000;
+    }
+
+    @Data
+    public static class Trim {
+        /**
+         * 裁剪策略：minid，只删除消费者组已经确认过的消息；maxlen，最多保留maxLen条，未消费的消息也可能被删除；none，不裁剪
+         */
+        private String policy = "minid";
+        /**
+         * maxlen策略最多保留的消息数
+         */
+        private long maxLen = 100000;
+        /**
+         * 裁剪间隔(毫秒)
+         */
+        private long interval = 60000;
+    }
+
+    @Data
+    public static class Recovery {
+        /**
+         * 扫描 stream.orders pending-list 的间隔(毫秒)
+         */
+        private long interval = 5000;
+        /**
+         * 消息超过这个时间没有确认才会被认领重试，之后每失败一次等待时间翻倍
+         */
+        private Duration minIdle = Duration.ofSeconds(30);
+        /**
+         * 重试等待时间的上限
+         */
+        private Duration maxBackoff = Duration.ofMinutes(5);
+        /**
+         * 投递次数达到这个值仍未成功的消息转入死信队列 stream.orders.dlq
+         */
+        private int maxDeliveries = 5;
+        /**
+         * 死信队列 stream.orders.dlq 大约保留的消息数，写入时按 MAXLEN ~ 裁剪
+         */
+        private long dlqMaxLen = 100000;
+        /**
+         * 补偿流水 stream.orders.compensation 大约保留的消息数，写入时按 MAXLEN ~ 裁剪
+         */
+        private long compensationMaxLen = 100000;
+        /**
+         * 每次最多扫描的pending消息数
+         */
+        private int scanLimit = 1000;
+    }
+}
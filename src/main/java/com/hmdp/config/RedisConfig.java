@@ -0,0 +1,57 @@
+package com.hmdp.config;
+
+import cn.hutool.core.util.StrUtil;
+import io.lettuce.core.ClientOptions;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisURI;
+import io.lettuce.core.TimeoutOptions;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.resource.ClientResources;
+import org.springframework.boot.autoconfigure.data.redis.RedisProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+@Configuration
+public class RedisConfig {
+
+    /**
+     * Redis 发布订阅的监听容器，用于节点之间广播本地状态的变化
+     */
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer(RedisConnectionFactory connectionFactory) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        return container;
+    }
+
+    /**
+     * 异步接口使用的 Lettuce 客户端，和 StringRedisTemplate 连接同一个库，共用 Spring Boot 的 ClientResources(事件循环线程)
+     */
+    @Bean(destroyMethod = "shutdown")
+    public RedisClient asyncRedisClient(RedisProperties properties, ClientResources clientResources) {
+        RedisURI.Builder builder = RedisURI.builder()
+                .withHost(properties.getHost())
+                .withPort(properties.getPort())
+                .withDatabase(properties.getDatabase());
+        if (StrUtil.isNotBlank(properties.getPassword())) {
+            builder.withPassword(properties.getPassword().toCharArray());
+        }
+        //命令超时和 StringRedisTemplate 一致，没有配置时使用 Lettuce 默认的60秒
+        if (properties.getTimeout() != null) {
+            builder.withTimeout(properties.getTimeout());
+        }
+        RedisClient client = RedisClient.create(clientResources, builder.build());
+        client.setOptions(ClientOptions.builder().timeoutOptions(TimeoutOptions.enabled()).build());
+        return client;
+    }
+
+    /**
+     * 异步接口共用的一条连接，Lettuce 的连接是线程安全的，命令在同一条连接上流水线发送
+     */
+    @Bean(destroyMethod = "close")
+    public StatefulRedisConnection<String, String> asyncRedisConnection(RedisClient asyncRedisClient) {
+        return asyncRedisClient.connect();
+    }
+}
@@ -0,0 +1,16 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+@Data
+public class OrderStatusDTO {
+    private Long orderId;
+    /**
+     * pending，排队中；created，下单成功；failed，下单失败
+     */
+    private String status;
+    /**
+     * 下单失败的原因
+     */
+    private String reason;
+}
@@ -37,6 +37,21 @@ public class SeckillVoucher implements Serializable {
      */
     private Integer stock;
 
+    /**
+     * 单节点每秒允许进入秒杀的请求数，为空时使用默认配置，小于等于0表示不限流
+     */
+    private Integer rateLimit;
+
+    /**
+     * 一人一单记录方式：0，Set；1，按用户id索引的Bitmap
+     */
+    private Integer dedupMode;
+
+    /**
+     * 库存分片数，新增时确定，redis数据丢失后预热按这个分片数恢复
+     */
+    private Integer stockShards;
+
     /**
      * 创建时间
      */
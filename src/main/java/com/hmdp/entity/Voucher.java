@@ -78,6 +78,24 @@ public class Voucher implements Serializable {
     @TableField(exist = false)
     private Integer stock;
 
+    /**
+     * 库存分片数，为空时使用默认配置，只在新增秒杀券时使用
+     */
+    @TableField(exist = false)
+    private Integer stockShards;
+
+    /**
+     * 单节点每秒允许进入秒杀的请求数，为空时使用默认配置
+     */
+    @TableField(exist = false)
+    private Integer rateLimit;
+
+    /**
+     * 一人一单记录方式：0，Set；1，Bitmap。为空时使用默认配置
+     */
+    @TableField(exist = false)
+    private Integer dedupMode;
+
     /**
      * 生效时间
      */
@@ -14,8 +14,9 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
-import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
 
+import javax.servlet.DispatcherType;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.util.Map;
@@ -27,7 +28,7 @@ import static com.hmdp.service.impl.UserServiceImpl.USER_ID;
 
 @Slf4j
 @Component
-public class RefreshTokenInterceptor implements HandlerInterceptor {
+public class RefreshTokenInterceptor implements AsyncHandlerInterceptor {
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
 
@@ -37,6 +38,10 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
     // 在请求处理之前进行调用（Controller方法调用之前）
     @Override
     public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        //0.异步请求完成后的再次分发，第一次分发时已经校验过，不再重复查询用户
+        if (request.getDispatcherType() == DispatcherType.ASYNC) {
+            return true;
+        }
         //1.在请求头中获取token
         String token = request.getHeader("authorization");
         if (StrUtil.isBlank(token)){
@@ -95,4 +100,10 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
     public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) throws Exception {
         UserHolder.removeUser();
     }
+
+    // 异步请求开始后servlet线程直接返回，不会调用afterCompletion，在这里清理线程上的用户
+    @Override
+    public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        UserHolder.removeUser();
+    }
 }
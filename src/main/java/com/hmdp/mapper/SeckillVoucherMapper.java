@@ -2,6 +2,11 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.SeckillVoucher;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 
 /**
  * <p>
@@ -13,4 +18,8 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface SeckillVoucherMapper extends BaseMapper<SeckillVoucher> {
 
+    /**
+     * 一次查询多张秒杀券的库存和未取消的订单数，返回 voucherId, stock, orders
+     */
+    List<Map<String, Object>> queryStockAndOrders(@Param("voucherIds") Collection<Long> voucherIds);
 }
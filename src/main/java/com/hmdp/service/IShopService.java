@@ -17,6 +17,9 @@ public interface IShopService extends IService<Shop> {
     //根据id查询商户信息
     Result queryById(Long id);
 
+    //新增商户信息
+    Result saveShop(Shop shop);
+
     //修改商户信息
     Result update(Shop shop);
 
@@ -4,6 +4,10 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
 /**
  * <p>
  *  服务类
@@ -17,6 +21,24 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
     // 秒杀优惠券
     Result seckillVoucher(Long voucherId);
 
+    // 秒杀优惠券，等待Redis响应时不占用servlet线程
+    CompletableFuture<Result> seckillVoucherAsync(Long voucherId);
+
     //  创建订单
     void createVoucherOrder(VoucherOrder voucherOrder);
+
+    //  创建订单，依赖唯一索引保证一人一单，重复的订单不会插入
+    void createVoucherOrderIdempotent(VoucherOrder voucherOrder);
+
+    //  批量创建订单
+    void createVoucherOrders(List<VoucherOrder> voucherOrders);
+
+    //  按配置的下单方式创建一条订单，和消费者处理单条消息相同，重试pending-list消息时使用
+    void retryVoucherOrder(VoucherOrder voucherOrder);
+
+    // 查询秒杀订单的处理结果
+    Result queryOrderStatus(Long orderId);
+
+    //  取消仍未支付的订单并归还数据库库存，返回实际取消的订单
+    List<VoucherOrder> cancelUnpaidOrders(Collection<Long> orderIds);
 }
@@ -1,39 +1,70 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.thread.NamedThreadFactory;
+import com.hmdp.config.HmdpProperties;
+import com.hmdp.dto.OrderStatusDTO;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.task.SeckillPreheatTask;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillAdmission;
+import com.hmdp.utils.SeckillOrderCompensation;
+import com.hmdp.utils.SeckillOrderStatus;
+import com.hmdp.utils.SeckillSoldOutRegistry;
+import com.hmdp.utils.SeckillStockLease;
 import com.hmdp.utils.SimpleRedisLock;
+import com.hmdp.utils.UnpaidOrderQueue;
 import com.hmdp.utils.UserHolder;
+import io.lettuce.core.RedisNoScriptException;
+import io.lettuce.core.ScriptOutputType;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.async.RedisAsyncCommands;
 import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
 import org.springframework.aop.framework.AopContext;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.NestedExceptionUtils;
 import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Component;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_GROUP;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STREAM;
 
 /**
  * <p>
@@ -59,33 +90,116 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private RedissonClient redissonClient;
 
+    @Resource
+    private SeckillSoldOutRegistry soldOutRegistry;
+
+    @Resource
+    private SeckillStockLease stockLease;
+
+    @Resource
+    private SeckillAdmission seckillAdmission;
+
+    @Resource
+    private SeckillPreheatTask seckillPreheatTask;
+
+    @Resource
+    private SeckillOrderStatus orderStatus;
+
+    @Resource
+    private SeckillOrderCompensation orderCompensation;
+
+    @Resource
+    private UnpaidOrderQueue unpaidOrderQueue;
+
+    @Resource
+    private StatefulRedisConnection<String, String> asyncRedisConnection;
+
 
+    //seckill.lua 返回值对应的提示：1库存不足 2重复下单 3秒杀未开始 4秒杀已结束 5节点租约已被回收
+    private static final String[] SECKILL_FAIL_MESSAGES = {"", "库存不足", "不能重复下单", "秒杀尚未开始", "秒杀已经结束", "系统繁忙，请稍后重试"};
 
-    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    //返回 {结果} 或者 {0, 订单id}
+    private static final DefaultRedisScript<List> SECKILL_SCRIPT;
     static {
         SECKILL_SCRIPT = new DefaultRedisScript<>();
         SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
-        SECKILL_SCRIPT.setResultType(Long.class);
+        SECKILL_SCRIPT.setResultType(List.class);
     }
 
 
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    @Resource
+    private HmdpProperties hmdpProperties;
+
+    //消费订单的线程池，线程数由 hmdp.seckill.order.workers 决定
+    private ExecutorService seckillOrderExecutor;
+
+    //处理异步抢购脚本结果的线程池，不在Lettuce的事件循环线程上执行业务代码
+    private ExecutorService seckillResultExecutor;
+
+    private volatile boolean running = true;
+
     @PostConstruct
     private void init() {
         // 初始化方法，在类初始化的时候去执行线程池，用于启动异步处理订单的线程
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+        //启动时创建stream.orders和消费者组g1，已经存在时忽略
+        createOrderGroup();
+        int workers = Math.max(1, hmdpProperties.getSeckill().getOrder().getWorkers());
+        seckillOrderExecutor = Executors.newFixedThreadPool(workers, new NamedThreadFactory("seckill-order-", false));
+        //每个线程都是消费者组里一个独立的消费者，消费者名称 = 节点标识-线程序号，保证集群内唯一
+        String nodeId = hmdpProperties.getNodeId();
+        for (int i = 0; i < workers; i++) {
+            seckillOrderExecutor.submit(new VoucherOrderHandler(nodeId + "-" + i));
+        }
+        seckillResultExecutor = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()),
+                new NamedThreadFactory("seckill-result-", true));
+    }
+
+    /**
+     * XGROUP CREATE stream.orders g1 0 MKSTREAM
+     */
+    private void createOrderGroup() {
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands().xGroupCreate(
+                    SECKILL_ORDER_STREAM.getBytes(StandardCharsets.UTF_8), SECKILL_ORDER_GROUP, ReadOffset.from("0"), true));
+            log.debug("创建消费者组 " + SECKILL_ORDER_GROUP);
+        } catch (Exception e) {
+            //BUSYGROUP 说明消费者组已经存在
+            if (!String.valueOf(NestedExceptionUtils.getMostSpecificCause(e).getMessage()).contains("BUSYGROUP")) {
+                log.error("创建消费者组失败", e);
+            }
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        running = false;
+        seckillOrderExecutor.shutdownNow();
+        seckillResultExecutor.shutdown();
     }
 
     //消息队列
     private class VoucherOrderHandler implements Runnable{
-        String queueName = "stream.orders";
+        String queueName = SECKILL_ORDER_STREAM;
+        private final String consumerName;
+
+        VoucherOrderHandler(String consumerName) {
+            this.consumerName = consumerName;
+        }
+
         @Override
         public void run() {
-            while(true){
+            //启动时先处理自己pending-list中上次未确认的消息
+            handlePendingOrders();
+            while(running){
                 try {
-                    //1.获取消息队列中订单信息
+                    if (hmdpProperties.getSeckill().getOrder().getBatchSize() > 1) {
+                        //批量模式：一次读取多条消息，批量落库，一次ACK
+                        handleOrderBatch();
+                        continue;
+                    }
+                    //1.获取消息队列中订单信息 XREADGROUP GROUP g1 consumerName COUNT 1 BLOCK 2000 STREAMS stream.orders >
                     List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
+                            Consumer.from(SECKILL_ORDER_GROUP, consumerName),
                             StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
                             StreamOffset.create(queueName, ReadOffset.lastConsumed())
                     );
@@ -103,49 +217,116 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
                     //4.如果获取成功，可以下单
                     handleVoucherOrder(voucherOrder);
                     //5.ACK确定 SACK stream.orders g1 id
-                    stringRedisTemplate.opsForStream().acknowledge(queueName,"g1",record.getId());
+                    stringRedisTemplate.opsForStream().acknowledge(queueName,SECKILL_ORDER_GROUP,record.getId());
 
                 } catch (Exception e) {
+                    if (!running) {
+                        break;
+                    }
                     log.error("处理订单异常",e);
+                    if (String.valueOf(NestedExceptionUtils.getMostSpecificCause(e).getMessage()).contains("NOGROUP")) {
+                        //Redis被清空或者重启后丢失了消费者组，重新创建
+                        createOrderGroup();
+                        continue;
+                    }
                     handlePendingOrders();//获取pending-list消息队列中订单信息
                 }
             }
 
         }
 
+        /**
+         * 批量处理订单：最多读取 batchSize 条消息，不足时最多再等待 batchLinger，
+         * 然后一次事务批量写入订单、按优惠券合并扣减库存，最后一次ACK全部消息
+         */
+        private void handleOrderBatch() {
+            HmdpProperties.Order orderProperties = hmdpProperties.getSeckill().getOrder();
+            int batchSize = orderProperties.getBatchSize();
+            //1.阻塞读取第一批消息
+            List<MapRecord<String, Object, Object>> records = new ArrayList<>(batchSize);
+            List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                    Consumer.from(SECKILL_ORDER_GROUP, consumerName),
+                    StreamReadOptions.empty().count(batchSize).block(Duration.ofSeconds(2)),
+                    StreamOffset.create(queueName, ReadOffset.lastConsumed())
+            );
+            if (list == null || list.isEmpty()) {
+                return;
+            }
+            records.addAll(list);
+            //2.批次未满，在linger时间内继续凑批
+            long deadline = System.currentTimeMillis() + orderProperties.getBatchLinger().toMillis();
+            while (records.size() < batchSize) {
+                long waitMillis = deadline - System.currentTimeMillis();
+                //BLOCK 0 表示永久阻塞，所以剩余时间不足1ms时直接结束凑批
+                if (waitMillis < 1) {
+                    break;
+                }
+                list = stringRedisTemplate.opsForStream().read(
+                        Consumer.from(SECKILL_ORDER_GROUP, consumerName),
+                        StreamReadOptions.empty().count(batchSize - records.size()).block(Duration.ofMillis(waitMillis)),
+                        StreamOffset.create(queueName, ReadOffset.lastConsumed())
+                );
+                if (list == null || list.isEmpty()) {
+                    break;
+                }
+                records.addAll(list);
+            }
+            //3.解析订单信息
+            List<VoucherOrder> voucherOrders = new ArrayList<>(records.size());
+            RecordId[] recordIds = new RecordId[records.size()];
+            for (int i = 0; i < records.size(); i++) {
+                MapRecord<String, Object, Object> record = records.get(i);
+                voucherOrders.add(BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true));
+                recordIds[i] = record.getId();
+            }
+            //4.批量下单，失败的消息留在pending-list中，由handlePendingOrders逐条处理
+            proxy.createVoucherOrders(voucherOrders);
+            //5.一次ACK全部消息
+            stringRedisTemplate.opsForStream().acknowledge(queueName, SECKILL_ORDER_GROUP, recordIds);
+        }
+
+        /**
+         * 处理自己pending-list中未确认的消息，只处理一遍：
+         * 处理失败的消息留在pending-list中，由 SeckillOrderRecoveryTask 退避重试或转入死信队列，不阻塞后续消息
+         */
         private void handlePendingOrders() {
-            while(true){
+            String offset = "0";
+            while(running){
+                List<MapRecord<String, Object, Object>> list;
                 try {
-                    //1.获取pending-list消息队列中订单信息
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1),
-                            StreamOffset.create(queueName, ReadOffset.from("0"))
+                    //1.获取pending-list消息队列中订单信息，从上一条之后继续读
+                    list = stringRedisTemplate.opsForStream().read(
+                            Consumer.from(SECKILL_ORDER_GROUP, consumerName),
+                            StreamReadOptions.empty().count(10),
+                            StreamOffset.create(queueName, ReadOffset.from(offset))
                     );
-                    //2.判断消息获取是否成功
-                    if(list==null|| list.isEmpty()){
-                        //如果获取失败，说明pending-list没有异常消息，直接结束循环
-                        break;
-                    }
-
-                    //解析订单中的订单信息
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> values = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
-
-                    //3.如果获取成功，可以下单
-                    handleVoucherOrder(voucherOrder);
-                    //4.ACK确定 SACK stream.orders g1 id
-                    stringRedisTemplate.opsForStream().acknowledge(queueName,"g1",record.getId());
-
                 } catch (Exception e) {
-                    log.error("处理pending-list订单异常",e);
+                    log.error("读取pending-list订单异常",e);
                     try {
                         Thread.sleep(20);
                     } catch (InterruptedException ex) {
-                        throw new RuntimeException(ex);
+                        Thread.currentThread().interrupt();
+                    }
+                    return;
+                }
+                //2.判断消息获取是否成功
+                if(list==null|| list.isEmpty()){
+                    //如果获取失败，说明pending-list没有异常消息，直接结束循环
+                    return;
+                }
+                for (MapRecord<String, Object, Object> record : list) {
+                    offset = record.getId().getValue();
+                    try {
+                        //解析订单中的订单信息
+                        Map<Object, Object> values = record.getValue();
+                        VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
+                        //3.如果获取成功，可以下单
+                        handleVoucherOrder(voucherOrder);
+                        //4.ACK确定 SACK stream.orders g1 id
+                        stringRedisTemplate.opsForStream().acknowledge(queueName,SECKILL_ORDER_GROUP,record.getId());
+                    } catch (Exception e) {
+                        log.error("处理pending-list订单异常, id:" + offset, e);
                     }
-
                 }
             }
         }
@@ -170,8 +351,21 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     }*/
     //异步下单,这是基于一个子线程实现的
 
+    @Override
+    public void retryVoucherOrder(VoucherOrder voucherOrder) {
+        //节点重启后还没有秒杀请求时代理对象为空，通过代理调用时取出来
+        proxy = (IVoucherOrderService) AopContext.currentProxy();
+        handleVoucherOrder(voucherOrder);
+    }
+
     private void handleVoucherOrder(VoucherOrder voucherOrder) {
 
+        //0.唯一索引保证一人一单，不需要加锁，也不需要先查询
+        if ("ignore".equals(hmdpProperties.getSeckill().getOrder().getInsertMode())) {
+            proxy.createVoucherOrderIdempotent(voucherOrder);
+            return;
+        }
+
         //1.拿到用户id
         Long userId = voucherOrder.getUserId();
 
@@ -182,9 +376,9 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         boolean isLock = lock.tryLock();
         //4.判断是否获取锁成功
         if(!isLock){
-            //获取锁失败，返回失败或者重试
-            log.error("不允许重复下单");
-            return;
+            //获取锁失败，这个用户的订单正在被其它线程处理。消息不ACK，留在pending-list中重试，
+            //重试时再判断是否重复下单并补偿库存，直接丢弃会让Redis中扣掉的库存永远卖不出去
+            throw new IllegalStateException("用户的订单正在处理中, userId:" + userId);
         }try {
 
            proxy.createVoucherOrder(voucherOrder);//下面的方法是用ctrl+alt+m快捷键抽出来的
@@ -197,28 +391,164 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     private IVoucherOrderService proxy;
         @Override
     public Result seckillVoucher(Long voucherId) {
-        //获取用户
-        Long userId = UserHolder.getUser().getId();
-        //获取订单id
-            long orderId = redisIdWorker.nexId("order");
+        //0.本地判断：时间窗口、售罄标记
+        boolean leased = stockLease.isEnabled();
+        Result rejected = checkLocally(voucherId, leased);
+        if (rejected != null) {
+            return rejected;
+        }
+        //0.3 准入控制，超过单券限流或全局并发上限直接返回，让用户稍后重试
+        if (!seckillAdmission.tryEnter(voucherId)) {
+            return Result.fail("抢购人数过多，请稍后重试");
+        }
+        try {
+            return doSeckillVoucher(voucherId, leased);
+        } finally {
+            seckillAdmission.exit();
+        }
+    }
+
+    /**
+     * 不需要访问Redis的判断，返回null表示通过
+     */
+    private Result checkLocally(Long voucherId, boolean leased) {
+        //0.1 预热过的秒杀券直接在本地判断时间窗口
+        SeckillVoucher voucher = seckillPreheatTask.getVoucher(voucherId);
+        if (voucher != null) {
+            LocalDateTime now = LocalDateTime.now();
+            if (voucher.getBeginTime().isAfter(now)) {
+                return Result.fail("秒杀尚未开始");
+            }
+            if (voucher.getEndTime().isBefore(now)) {
+                return Result.fail("秒杀已经结束");
+            }
+        }
+        //0.2 未开启库存租约时，本地已标记售罄直接返回，不需要访问Redis
+        if (!leased && soldOutRegistry.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
+        return null;
+    }
+
+    private Result doSeckillVoucher(Long voucherId, boolean leased) {
+        //0.4 开启库存租约时先从节点本地扣减库存
+        if (leased && !stockLease.tryAcquire(voucherId)) {
+            return Result.fail("库存不足");
+        }
         //1.执行lua脚本,判断用户是否拥有购买资格
-        Long result = stringRedisTemplate.execute(
+        List<?> result = stringRedisTemplate.execute(
                 SECKILL_SCRIPT,
                 Collections.emptyList(),
-                voucherId.toString(), userId.toString(),String.valueOf(orderId)
+                (Object[]) seckillArgs(voucherId, UserHolder.getUser().getId(), leased)
         );
-        //2.判断结果是否为0
-        int r=result.intValue();
-        if(r!=0){
-            //2.1 如果不是0，说明没有购买资格
-            return Result.fail(r == 1 ? "库存不足" : "不能重复下单");
-        }
-        //3.获取代理对象
-        //获取代理对象（事务）
+        //2.获取代理对象（事务）
         proxy = (IVoucherOrderService) AopContext.currentProxy();
-        //4.返回订单id
-        return Result.ok(orderId);
+        //3.根据脚本结果返回订单id或者失败原因
+        return seckillResult(voucherId, leased, result);
+    }
+
+    /**
+     * seckill.lua 的参数
+     */
+    private String[] seckillArgs(Long voucherId, Long userId, boolean leased) {
+        //获取订单id，redis模式下由脚本在下单成功后生成，被拒绝的请求不再消耗一次INCR
+        LocalDateTime now = LocalDateTime.now();
+        String orderId = redisIdWorker.isSnowflake() ? String.valueOf(redisIdWorker.nexId("order")) : "";
+        return new String[]{
+                voucherId.toString(), userId.toString(), orderId,
+                leased ? hmdpProperties.getNodeId() : "",
+                String.valueOf(redisIdWorker.timestamp(now)), redisIdWorker.sequenceKey("order", now),
+                String.valueOf(hmdpProperties.getSeckill().getOrder().getStatusTtl().getSeconds())
+        };
+    }
+
+    /**
+     * 处理 seckill.lua 的返回值
+     */
+    private Result seckillResult(Long voucherId, boolean leased, List<?> result) {
+        //1.判断结果是否为0
+        int r = ((Long) result.get(0)).intValue();
+        if (r != 0) {
+            //1.1 如果不是0，说明没有购买资格
+            if (r == 5) {
+                //本节点的租约已经被回收，本地剩余的租约库存作废
+                stockLease.discard(voucherId);
+            } else if (leased) {
+                //没有下单成功，租约库存还给本地
+                stockLease.release(voucherId);
+            }
+            if (r == 1) {
+                //库存不足，标记售罄并通知其它节点
+                soldOutRegistry.markSoldOut(voucherId);
+            }
+            return Result.fail(SECKILL_FAIL_MESSAGES[r]);
+        }
+        //2.返回订单id
+        return Result.ok(Long.valueOf((String) result.get(1)));
+    }
+
+    /**
+     * 异步抢购：判断逻辑和同步接口相同，脚本通过 Lettuce 异步命令执行，等待Redis响应时不占用servlet线程
+     */
+    @Override
+    public CompletableFuture<Result> seckillVoucherAsync(Long voucherId) {
+        //0.本地判断：时间窗口、售罄标记
+        boolean leased = stockLease.isEnabled();
+        Result rejected = checkLocally(voucherId, leased);
+        if (rejected != null) {
+            return CompletableFuture.completedFuture(rejected);
+        }
+        //0.3 准入控制，名额在脚本返回后才释放，限制的是正在等待Redis响应的请求数
+        if (!seckillAdmission.tryEnter(voucherId)) {
+            return CompletableFuture.completedFuture(Result.fail("抢购人数过多，请稍后重试"));
+        }
+        CompletableFuture<Result> future;
+        try {
+            future = doSeckillVoucherAsync(voucherId, leased);
+        } catch (RuntimeException e) {
+            seckillAdmission.exit();
+            throw e;
+        }
+        return future.whenComplete((result, e) -> seckillAdmission.exit());
     }
+
+    private CompletableFuture<Result> doSeckillVoucherAsync(Long voucherId, boolean leased) {
+        //0.4 开启库存租约时先从节点本地扣减库存
+        if (leased && !stockLease.tryAcquire(voucherId)) {
+            return CompletableFuture.completedFuture(Result.fail("库存不足"));
+        }
+        //1.用户和订单id在当前线程取得，snowflake模式本地生成，redis模式由脚本生成，都不需要单独访问Redis
+        String[] args = seckillArgs(voucherId, UserHolder.getUser().getId(), leased);
+        //2.异步执行lua脚本，先EVALSHA，Redis中没有缓存脚本时再EVAL
+        RedisAsyncCommands<String, String> commands = asyncRedisConnection.async();
+        CompletableFuture<List<Object>> script = commands.<List<Object>>evalsha(
+                SECKILL_SCRIPT.getSha1(), ScriptOutputType.MULTI, new String[0], args).toCompletableFuture()
+                .handle((result, e) -> {
+                    if (e == null) {
+                        return CompletableFuture.completedFuture(result);
+                    }
+                    if (NestedExceptionUtils.getMostSpecificCause(e) instanceof RedisNoScriptException) {
+                        return commands.<List<Object>>eval(SECKILL_SCRIPT.getScriptAsString(),
+                                ScriptOutputType.MULTI, new String[0], args).toCompletableFuture();
+                    }
+                    CompletableFuture<List<Object>> failed = new CompletableFuture<>();
+                    failed.completeExceptionally(e);
+                    return failed;
+                })
+                .thenCompose(f -> f);
+        //3.回调默认在Lettuce的事件循环线程上执行，处理结果时可能同步访问Redis(广播售罄)，切换到单独的线程池
+        return script.handleAsync((result, e) -> {
+            if (e != null) {
+                if (leased) {
+                    stockLease.release(voucherId);
+                }
+                log.error("异步执行秒杀脚本失败, voucherId:" + voucherId, e);
+                return Result.fail("系统繁忙，请稍后重试");
+            }
+            return seckillResult(voucherId, leased, result);
+        }, seckillResultExecutor);
+    }
+
     //基于阻塞队列实现异步下单
 /*    @Override
     public Result seckillVoucher(Long voucherId) {
@@ -302,13 +632,24 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         Long voucherId = voucherOrder.getVoucherId();
 
         //5.1查询订单
-        Integer count = query()
+        List<VoucherOrder> existOrders = query()
+                .select("id", "status")
                 .eq("user_id", userId)
                 .eq("voucher_id", voucherId)
-                .count();
+                .list();
         //5.2判断是否存在
-        if (count > 0) {
+        for (VoucherOrder existOrder : existOrders) {
+            if (existOrder.getId().equals(voucherOrder.getId())) {
+                //同一条消息重复投递，订单已经创建过了
+                afterCommit(() -> ordersCreated(Collections.singletonList(voucherOrder)));
+                return;
+            }
+        }
+        //已取消(状态4)的订单不占用一人一单的名额
+        if (existOrders.stream().anyMatch(existOrder -> existOrder.getStatus() != 4)) {
             log.error("用户已经购买过一次");
+            //用户已经有别的订单，只归还这次扣掉的Redis库存
+            compensateAfterCommit(Collections.singletonList(voucherOrder), false, "不能重复下单");
             return;
         }
 
@@ -320,13 +661,217 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
                 .update();
         if (!success) {
             log.error("库存不足!");
+            compensateAfterCommit(Collections.singletonList(voucherOrder), true, "库存不足");
             return;
         }
 
         //7.创建订单
         save(voucherOrder);
+        //8.事务提交后再记录下单成功，避免回滚后客户端看到成功
+        afterCommit(() -> ordersCreated(Collections.singletonList(voucherOrder)));
 
     }
+    @Override
+    @Transactional
+    public void createVoucherOrderIdempotent(VoucherOrder voucherOrder) {
+        List<VoucherOrder> orders = Collections.singletonList(voucherOrder);
+        //1.INSERT IGNORE，用户已经有未取消的订单(唯一索引冲突)或者同一条消息重复投递(主键冲突)时不插入
+        if (getBaseMapper().insertIgnore(voucherOrder) == 0) {
+            //1.1 只有没插入时才查询，区分重复投递和重复下单
+            if (getById(voucherOrder.getId()) != null) {
+                afterCommit(() -> ordersCreated(orders));
+                return;
+            }
+            log.error("用户已经购买过一次");
+            compensateAfterCommit(orders, false, "不能重复下单");
+            return;
+        }
+        //2.扣减库存，放在插入之后，热点库存行的行锁只持有到提交为止
+        boolean success = seckillVoucherService.update()
+                .setSql("stock=stock-1")
+                .eq("voucher_id", voucherOrder.getVoucherId()).gt("stock", 0)
+                .update();
+        if (!success) {
+            log.error("库存不足!");
+            //撤销刚插入的订单
+            removeById(voucherOrder.getId());
+            compensateAfterCommit(orders, true, "库存不足");
+            return;
+        }
+        //3.事务提交后再记录下单成功
+        afterCommit(() -> ordersCreated(orders));
+    }
+
+    @Override
+    @Transactional
+    public void createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        //1.批次内去重，同一个用户同一张券只保留一条
+        Map<String, VoucherOrder> orderMap = new LinkedHashMap<>(voucherOrders.size());
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            VoucherOrder first = orderMap.putIfAbsent(voucherOrder.getUserId() + ":" + voucherOrder.getVoucherId(), voucherOrder);
+            if (first != null && !first.getId().equals(voucherOrder.getId())) {
+                compensateAfterCommit(Collections.singletonList(voucherOrder), false, "不能重复下单");
+            }
+        }
+        //2.一人一单，一次查询出批次中已经下过单的用户
+        Set<Long> userIds = new HashSet<>();
+        Set<Long> voucherIds = new HashSet<>();
+        for (VoucherOrder voucherOrder : orderMap.values()) {
+            userIds.add(voucherOrder.getUserId());
+            voucherIds.add(voucherOrder.getVoucherId());
+        }
+        List<VoucherOrder> existOrders = query()
+                .select("id", "user_id", "voucher_id", "status")
+                .in("user_id", userIds)
+                .in("voucher_id", voucherIds)
+                .list();
+        List<VoucherOrder> redelivered = new ArrayList<>();
+        for (VoucherOrder existOrder : existOrders) {
+            String key = existOrder.getUserId() + ":" + existOrder.getVoucherId();
+            VoucherOrder order = orderMap.get(key);
+            if (order == null) {
+                continue;
+            }
+            if (existOrder.getId().equals(order.getId())) {
+                //同一条消息重复投递，订单已经创建过了
+                orderMap.remove(key);
+                redelivered.add(order);
+            } else if (existOrder.getStatus() != 4) {
+                //已取消(状态4)的订单不占用一人一单的名额
+                orderMap.remove(key);
+                log.error("用户已经购买过一次");
+                compensateAfterCommit(Collections.singletonList(order), false, "不能重复下单");
+            }
+        }
+        if (!redelivered.isEmpty()) {
+            afterCommit(() -> ordersCreated(redelivered));
+        }
+        if (orderMap.isEmpty()) {
+            return;
+        }
+        //3.按优惠券分组，每张券只扣减一次库存 stock = stock - k
+        Map<Long, List<VoucherOrder>> ordersOfVoucher = orderMap.values().stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId));
+        List<VoucherOrder> saveOrders = new ArrayList<>(orderMap.size());
+        for (Map.Entry<Long, List<VoucherOrder>> entry : ordersOfVoucher.entrySet()) {
+            Long voucherId = entry.getKey();
+            List<VoucherOrder> orders = entry.getValue();
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock=stock-" + orders.size())
+                    .eq("voucher_id", voucherId).ge("stock", orders.size())
+                    .update();
+            if (success) {
+                saveOrders.addAll(orders);
+                continue;
+            }
+            //3.1 库存不够整批扣减，退回逐条扣减，能扣多少下多少单
+            for (int i = 0; i < orders.size(); i++) {
+                boolean ok = seckillVoucherService.update()
+                        .setSql("stock=stock-1")
+                        .eq("voucher_id", voucherId).gt("stock", 0)
+                        .update();
+                if (!ok) {
+                    log.error("库存不足!");
+                    //剩下的订单都没有库存了
+                    compensateAfterCommit(new ArrayList<>(orders.subList(i, orders.size())), true, "库存不足");
+                    break;
+                }
+                saveOrders.add(orders.get(i));
+            }
+        }
+        //4.一条多值INSERT写入全部订单
+        if (!saveOrders.isEmpty()) {
+            getBaseMapper().insertBatch(saveOrders);
+            //5.事务提交后再记录下单成功
+            afterCommit(() -> ordersCreated(saveOrders));
+        }
+    }
+
+    /**
+     * 订单已经写入数据库：记录下单成功，加入未支付订单的延迟队列
+     */
+    private void ordersCreated(List<VoucherOrder> voucherOrders) {
+        orderStatus.created(voucherOrders);
+        unpaidOrderQueue.add(voucherOrders);
+    }
+
+    @Override
+    @Transactional
+    public List<VoucherOrder> cancelUnpaidOrders(Collection<Long> orderIds) {
+        //1.查询并锁住仍然未支付(状态1)的订单，避免和支付同时修改
+        List<VoucherOrder> orders = query()
+                .select("id", "user_id", "voucher_id")
+                .in("id", orderIds)
+                .eq("status", 1)
+                .last("for update")
+                .list();
+        if (orders.isEmpty()) {
+            return orders;
+        }
+        //2.一条UPDATE取消全部订单
+        update().set("status", 4)
+                .in("id", orders.stream().map(VoucherOrder::getId).collect(Collectors.toList()))
+                .update();
+        //3.按优惠券合并归还库存 stock = stock + k，按券id顺序更新，避免并发事务互相等待
+        Map<Long, Long> counts = orders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, TreeMap::new, Collectors.counting()));
+        for (Map.Entry<Long, Long> entry : counts.entrySet()) {
+            seckillVoucherService.update()
+                    .setSql("stock=stock+" + entry.getValue())
+                    .eq("voucher_id", entry.getKey())
+                    .update();
+        }
+        return orders;
+    }
+
+    /**
+     * 事务提交后再补偿没有创建成功的订单，事务回滚时消息会被重新投递，不能提前归还库存
+     */
+    private void compensateAfterCommit(List<VoucherOrder> voucherOrders, boolean removeBuyer, String reason) {
+        afterCommit(() -> orderCompensation.compensate(voucherOrders, removeBuyer, reason));
+    }
+
+    /**
+     * 在当前事务提交后执行
+     */
+    private static void afterCommit(Runnable task) {
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                task.run();
+            }
+        });
+    }
+
+    @Override
+    public Result queryOrderStatus(Long orderId) {
+        Long userId = UserHolder.getUser().getId();
+        //1.先查Redis中的订单处理结果
+        OrderStatusDTO status = orderStatus.get(orderId, userId);
+        if (status != null) {
+            return Result.ok(status);
+        }
+        //2.Redis中的结果已经过期，查询数据库
+        VoucherOrder voucherOrder = query()
+                .select("id", "status")
+                .eq("id", orderId)
+                .eq("user_id", userId)
+                .one();
+        if (voucherOrder == null) {
+            return Result.fail("订单不存在");
+        }
+        status = new OrderStatusDTO();
+        status.setOrderId(orderId);
+        if (voucherOrder.getStatus() != null && voucherOrder.getStatus() == 4) {
+            //超时未支付被取消(状态4)的订单
+            status.setStatus("failed");
+            status.setReason(SeckillOrderStatus.CANCELLED_REASON);
+        } else {
+            status.setStatus("created");
+        }
+        return Result.ok(status);
+    }
+
     //一开始的串行版本,并没有将一些操作分离到达异步的效果
 /*    @Transactional
     public Result createVoucherOrder(VoucherOrder voucherOrder) {
@@ -1,6 +1,7 @@
 package com.hmdp.service.impl;
 
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.config.HmdpProperties;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
 import com.hmdp.mapper.VoucherMapper;
@@ -8,12 +9,17 @@ import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
 import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SeckillSoldOutRegistry;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * <p>
@@ -32,6 +38,12 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private SeckillSoldOutRegistry soldOutRegistry;
+
+    @Resource
+    private HmdpProperties hmdpProperties;
+
     @Override
     public Result queryVoucherOfShop(Long shopId) {
         // 查询优惠券信息
@@ -49,10 +61,59 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         SeckillVoucher seckillVoucher = new SeckillVoucher();
         seckillVoucher.setVoucherId(voucher.getId());
         seckillVoucher.setStock(voucher.getStock());
+        seckillVoucher.setRateLimit(voucher.getRateLimit());
+        if (voucher.getDedupMode() == null) {
+            voucher.setDedupMode(hmdpProperties.getSeckill().getDedupMode());
+        }
+        seckillVoucher.setDedupMode(voucher.getDedupMode());
+        if (voucher.getStockShards() == null) {
+            voucher.setStockShards(hmdpProperties.getSeckill().getStockShards());
+        }
+        //库存太少时分片没有意义
+        voucher.setStockShards(Math.max(1, Math.min(voucher.getStockShards(), voucher.getStock())));
+        seckillVoucher.setStockShards(voucher.getStockShards());
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
         //保存库存到redis
-        stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_STOCK_KEY + voucher.getId(), voucher.getStock().toString());
+        saveSeckillStock(voucher);
+        //补货后清除各节点的售罄标记
+        soldOutRegistry.clear(voucher.getId());
+    }
+
+    /**
+     * 保存秒杀库存和秒杀券元数据到redis，分片数大于1时把库存均分到 seckill:stock:{id}:{分片} 中
+     */
+    private void saveSeckillStock(Voucher voucher) {
+        String stockKey = RedisConstants.SECKILL_STOCK_KEY + voucher.getId();
+        int stock = voucher.getStock();
+        int shards = voucher.getStockShards();
+        if (shards == 1) {
+            stringRedisTemplate.opsForValue().set(stockKey, String.valueOf(stock));
+        } else {
+            //1.均分库存，余数分给前面的分片
+            Map<String, String> shardStock = new HashMap<>(shards);
+            for (int i = 0; i < shards; i++) {
+                int count = stock / shards + (i < stock % shards ? 1 : 0);
+                shardStock.put(stockKey + ":" + i, String.valueOf(count));
+            }
+            stringRedisTemplate.opsForValue().multiSet(shardStock);
+        }
+        //2.记录分片数、一人一单记录方式和秒杀时间窗口(毫秒时间戳)，
+        // seckill.lua据此选择分片、判断是否重复下单、判断秒杀是否开始或结束
+        Map<String, String> meta = new HashMap<>(4);
+        meta.put("shards", String.valueOf(shards));
+        meta.put("dedup", String.valueOf(voucher.getDedupMode()));
+        if (voucher.getBeginTime() != null) {
+            meta.put("begin", String.valueOf(toEpochMilli(voucher.getBeginTime())));
+        }
+        if (voucher.getEndTime() != null) {
+            meta.put("end", String.valueOf(toEpochMilli(voucher.getEndTime())));
+        }
+        stringRedisTemplate.opsForHash().putAll(RedisConstants.SECKILL_META_KEY + voucher.getId(), meta);
+    }
+
+    private static long toEpochMilli(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
     }
 }
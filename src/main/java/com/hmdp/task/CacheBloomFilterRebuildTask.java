@@ -0,0 +1,22 @@
+package com.hmdp.task;
+
+import com.hmdp.utils.CacheBloomFilter;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+
+/**
+ * 定期按数据库重建布隆过滤器，去掉已经删除的数据，数据增长后按新的数据量重新计算大小
+ */
+@Component
+public class CacheBloomFilterRebuildTask {
+
+    @Resource
+    private CacheBloomFilter cacheBloomFilter;
+
+    @Scheduled(initialDelayString = "${hmdp.cache.bloom.rebuild-interval:3600000}", fixedDelayString = "${hmdp.cache.bloom.rebuild-interval:3600000}")
+    public void rebuild() {
+        cacheBloomFilter.rebuildAll();
+    }
+}
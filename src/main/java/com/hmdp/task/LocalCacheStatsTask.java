@@ -0,0 +1,30 @@
+package com.hmdp.task;
+
+import com.hmdp.utils.LocalCache;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Map;
+
+/**
+ * 定期输出 CacheClient 一级缓存各key前缀的命中率，统计的是两次输出之间的请求
+ */
+@Slf4j
+@Component
+public class LocalCacheStatsTask {
+
+    @Resource
+    private LocalCache localCache;
+
+    @Scheduled(initialDelayString = "${hmdp.cache.local.stats-interval:60000}", fixedDelayString = "${hmdp.cache.local.stats-interval:60000}")
+    public void report() {
+        if (!localCache.isEnabled()) {
+            return;
+        }
+        for (Map.Entry<String, String> entry : localCache.drainStats().entrySet()) {
+            log.info("一级缓存命中率, 前缀:{}, {}", entry.getKey(), entry.getValue());
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package com.hmdp.task;
+
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.util.NumberUtil;
+import com.hmdp.config.HmdpProperties;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.SeckillOrderCompensation;
+import com.hmdp.utils.SeckillOrderStatus;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.RedisZSetCommands.Limit;
+import org.springframework.data.redis.connection.stream.ByteRecord;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_DLQ;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_GROUP;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STREAM;
+
+/**
+ * stream.orders 超时未确认消息的恢复任务，每个节点都会执行：
+ * 1.扫描pending-list，认领(XCLAIM)空闲时间超过退避时间的消息并重试，包括其它节点宕机后留下的消息
+ * 2.投递次数过多的消息转入死信队列 stream.orders.dlq，不再重试，并补偿Redis中扣掉的库存
+ * 3.输出消费者组和每个消费者的积压情况
+ */
+@Slf4j
+@Component
+public class SeckillOrderRecoveryTask {
+
+    //每次XPENDING读取的消息数
+    private static final int PENDING_PAGE_SIZE = 100;
+
+    private static final DefaultRedisScript<List> PENDING_SCRIPT;
+    static {
+        PENDING_SCRIPT = new DefaultRedisScript<>();
+        PENDING_SCRIPT.setLocation(new ClassPathResource("seckill_order_pending.lua"));
+        PENDING_SCRIPT.setResultType(List.class);
+    }
+
+    @Resource
+    private HmdpProperties hmdpProperties;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private SeckillOrderStatus orderStatus;
+
+    @Resource
+    private SeckillOrderCompensation orderCompensation;
+
+    @Scheduled(initialDelay = 5000, fixedDelayString = "${hmdp.seckill.order.recovery.interval:5000}")
+    public void recover() {
+        try {
+            recoverPendingOrders();
+            reportLag();
+        } catch (Exception e) {
+            log.error("恢复pending-list订单失败", e);
+        }
+    }
+
+    private void recoverPendingOrders() {
+        HmdpProperties.Recovery properties = hmdpProperties.getSeckill().getOrder().getRecovery();
+        //认领后的消息归到本节点的恢复消费者名下
+        String consumerName = hmdpProperties.getNodeId() + "-recovery";
+        String start = "-";
+        int scanned = 0;
+        while (scanned < properties.getScanLimit()) {
+            //1.分页读取pending-list XPENDING stream.orders g1 start + 100，从上一页最后一条开始(包含)
+            List<List<Object>> pending = stringRedisTemplate.execute(
+                    PENDING_SCRIPT, Collections.emptyList(), start, String.valueOf(PENDING_PAGE_SIZE));
+            if (pending == null || pending.isEmpty()) {
+                return;
+            }
+            for (List<Object> message : pending) {
+                String id = (String) message.get(0);
+                if (id.equals(start)) {
+                    continue;
+                }
+                scanned++;
+                try {
+                    recoverMessage(id, (String) message.get(1), (Long) message.get(2), (Long) message.get(3),
+                            consumerName, properties);
+                } catch (Exception e) {
+                    log.error("恢复订单消息失败, id:{}", id, e);
+                }
+            }
+            if (pending.size() < PENDING_PAGE_SIZE) {
+                return;
+            }
+            start = (String) pending.get(pending.size() - 1).get(0);
+        }
+    }
+
+    private void recoverMessage(String id, String owner, long idleMillis, long deliveries,
+                                String consumerName, HmdpProperties.Recovery properties) {
+        //1.投递次数越多等待越久：minIdle * 2^(投递次数-1)，不超过maxBackoff
+        Duration backoff = backoff(deliveries, properties);
+        if (idleMillis < backoff.toMillis()) {
+            return;
+        }
+        //2.认领消息，XCLAIM会再次检查空闲时间，多个节点同时认领时只有一个能成功
+        MapRecord<String, String, String> record = claim(RecordId.of(id), consumerName, backoff);
+        if (record == null) {
+            return;
+        }
+        VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true);
+        if (voucherOrder.getId() == null || voucherOrder.getUserId() == null || voucherOrder.getVoucherId() == null) {
+            deadLetter(record, owner, deliveries, "消息格式错误");
+            return;
+        }
+        //3.投递次数过多，转入死信队列
+        if (deliveries >= properties.getMaxDeliveries()) {
+            if (voucherOrderService.getById(voucherOrder.getId()) != null) {
+                //订单其实已经创建了，只是没有ACK
+                orderStatus.created(Collections.singletonList(voucherOrder));
+                stringRedisTemplate.opsForStream().acknowledge(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP, record.getId());
+                return;
+            }
+            //订单不会再创建了，归还Redis库存并移除一人一单记录
+            orderCompensation.compensate(Collections.singletonList(voucherOrder), true, "下单失败");
+            deadLetter(record, owner, deliveries, "投递" + deliveries + "次仍未成功");
+            return;
+        }
+        //4.重新下单，和消费者一样按配置的方式逐条下单(加锁或者唯一索引)，已经创建过的订单会跳过，
+        //重复投递也不会重复扣库存；加锁失败时抛出异常，消息留在pending-list中等下次重试
+        voucherOrderService.retryVoucherOrder(voucherOrder);
+        //5.ACK确定
+        stringRedisTemplate.opsForStream().acknowledge(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP, record.getId());
+        log.info("恢复订单消息成功, id:{}, 原消费者:{}, 投递次数:{}",
+                record.getId(), owner, deliveries + 1);
+    }
+
+    private static Duration backoff(long deliveries, HmdpProperties.Recovery properties) {
+        Duration maxBackoff = properties.getMaxBackoff();
+        //防止移位溢出
+        long shift = Math.min(Math.max(deliveries - 1, 0), 20);
+        Duration backoff = properties.getMinIdle().multipliedBy(1L << shift);
+        return backoff.compareTo(maxBackoff) > 0 ? maxBackoff : backoff;
+    }
+
+    /**
+     * XCLAIM stream.orders g1 consumerName minIdle id，返回认领到的消息，没有认领到返回null
+     */
+    private MapRecord<String, String, String> claim(RecordId id, String consumerName, Duration minIdle) {
+        List<ByteRecord> records = stringRedisTemplate.execute((RedisCallback<List<ByteRecord>>) connection ->
+                connection.streamCommands().xClaim(
+                        SECKILL_ORDER_STREAM.getBytes(StandardCharsets.UTF_8), SECKILL_ORDER_GROUP, consumerName,
+                        RedisStreamCommands.XClaimOptions.minIdle(minIdle).ids(id)));
+        if (records == null || records.isEmpty() || records.get(0) == null) {
+            return null;
+        }
+        return records.get(0).deserialize(stringRedisTemplate.getStringSerializer());
+    }
+
+    /**
+     * 把消息连同原消息id、消费者、投递次数、原因写入死信队列，然后ACK
+     */
+    private void deadLetter(MapRecord<String, String, String> record, String owner, long deliveries, String reason) {
+        Map<String, String> values = new HashMap<>(record.getValue());
+        values.put("sourceId", record.getId().getValue());
+        values.put("consumer", owner);
+        values.put("deliveries", String.valueOf(deliveries));
+        values.put("reason", reason);
+        //XADD stream.orders.dlq MAXLEN ~ dlqMaxLen * k1 v1 ...，死信队列只保留最近的消息，不会无限增长
+        List<byte[]> args = new ArrayList<>(values.size() * 2 + 4);
+        args.add(bytes(SECKILL_ORDER_DLQ));
+        args.add(bytes("MAXLEN"));
+        args.add(bytes("~"));
+        args.add(bytes(String.valueOf(hmdpProperties.getSeckill().getOrder().getRecovery().getDlqMaxLen())));
+        args.add(bytes("*"));
+        values.forEach((field, value) -> {
+            args.add(bytes(field));
+            args.add(bytes(value));
+        });
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.execute("XADD", args.toArray(new byte[0][])));
+        String orderId = record.getValue().get("id");
+        String userId = record.getValue().get("userId");
+        if (NumberUtil.isLong(orderId) && NumberUtil.isLong(userId)) {
+            orderStatus.failed(Long.valueOf(orderId), Long.valueOf(userId), "下单失败");
+        }
+        stringRedisTemplate.opsForStream().acknowledge(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP, record.getId());
+        log.error("订单消息转入死信队列, id:{}, 原因:{}, 消息:{}", record.getId(), reason, record.getValue());
+    }
+
+    /**
+     * 输出积压情况：消费者组最早一条未投递消息已经等待的时间，每个消费者未确认的消息数和空闲时间
+     */
+    private void reportLag() {
+        StreamInfo.XInfoGroups groups = stringRedisTemplate.opsForStream().groups(SECKILL_ORDER_STREAM);
+        StreamInfo.XInfoGroup group = groups.stream()
+                .filter(g -> SECKILL_ORDER_GROUP.equals(g.groupName()))
+                .findFirst().orElse(null);
+        if (group == null) {
+            return;
+        }
+        //1.最早一条未投递的消息，消息id的前半部分是写入时间
+        long lagMillis = 0;
+        List<MapRecord<String, Object, Object>> undelivered = stringRedisTemplate.opsForStream().range(
+                SECKILL_ORDER_STREAM, Range.closed(group.lastDeliveredId(), "+"), Limit.limit().count(2));
+        if (undelivered != null) {
+            for (MapRecord<String, Object, Object> record : undelivered) {
+                if (!record.getId().getValue().equals(group.lastDeliveredId())) {
+                    lagMillis = System.currentTimeMillis() - record.getId().getTimestamp();
+                    break;
+                }
+            }
+        }
+        //2.每个消费者的积压
+        StringBuilder consumers = new StringBuilder();
+        stringRedisTemplate.opsForStream().consumers(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP).forEach(consumer -> {
+            if (consumer.pendingCount() > 0) {
+                consumers.append(consumer.consumerName())
+                        .append("[pending:").append(consumer.pendingCount())
+                        .append(", idle:").append(consumer.idleTimeMs()).append("ms] ");
+            }
+        });
+        if (group.pendingCount() > 0 || lagMillis > 0) {
+            log.info("订单消费积压, 未确认:{}, 未投递最早消息已等待:{}ms, 消费者:{}",
+                    group.pendingCount(), lagMillis, consumers);
+        } else {
+            log.debug("订单消费无积压");
+        }
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,57 @@
+package com.hmdp.task;
+
+import com.hmdp.config.HmdpProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 定期裁剪 stream.orders，已经确认的订单消息不再占用Redis内存。
+ * 默认按 MINID 裁剪，边界是消费者组最早未确认(或最后投递)的消息，不会删除还没处理完的订单
+ */
+@Slf4j
+@Component
+public class SeckillOrderStreamTrimTask {
+
+    //返回 {删除的消息数, 裁剪前占用内存, 裁剪后占用内存}
+    private static final DefaultRedisScript<List> TRIM_SCRIPT;
+    static {
+        TRIM_SCRIPT = new DefaultRedisScript<>();
+        TRIM_SCRIPT.setLocation(new ClassPathResource("seckill_order_trim.lua"));
+        TRIM_SCRIPT.setResultType(List.class);
+    }
+
+    @Resource
+    private HmdpProperties hmdpProperties;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Scheduled(initialDelayString = "${hmdp.seckill.order.trim.interval:60000}", fixedDelayString = "${hmdp.seckill.order.trim.interval:60000}")
+    public void trim() {
+        HmdpProperties.Trim properties = hmdpProperties.getSeckill().getOrder().getTrim();
+        if ("none".equals(properties.getPolicy())) {
+            return;
+        }
+        try {
+            List<?> result = stringRedisTemplate.execute(TRIM_SCRIPT, Collections.emptyList(),
+                    properties.getPolicy(), String.valueOf(properties.getMaxLen()));
+            long trimmed = (Long) result.get(0);
+            if (trimmed > 0) {
+                long before = (Long) result.get(1);
+                long after = (Long) result.get(2);
+                log.info("裁剪stream.orders, 策略:{}, 删除消息:{}, 释放内存:{}字节, 剩余内存:{}字节",
+                        properties.getPolicy(), trimmed, before - after, after);
+            }
+        } catch (Exception e) {
+            log.error("裁剪stream.orders失败", e);
+        }
+    }
+}
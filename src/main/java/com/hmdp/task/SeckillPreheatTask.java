@@ -0,0 +1,174 @@
+package com.hmdp.task;
+
+import com.hmdp.config.HmdpProperties;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.RedisConstants;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 秒杀预热任务：定期扫描即将开始和正在进行的秒杀券，
+ * 1.把库存、已下单用户、秒杀时间窗口加载到Redis(Redis重启或被清空后也能自动恢复)
+ * 2.把秒杀券信息缓存在节点本地，秒杀接口据此在本地判断时间窗口，不再查询数据库
+ */
+@Slf4j
+@Component
+public class SeckillPreheatTask {
+
+    private static final DefaultRedisScript<Long> PREHEAT_SCRIPT;
+    static {
+        PREHEAT_SCRIPT = new DefaultRedisScript<>();
+        PREHEAT_SCRIPT.setLocation(new ClassPathResource("seckill_preheat.lua"));
+        PREHEAT_SCRIPT.setResultType(Long.class);
+    }
+
+    //每次SADD的用户数
+    private static final int BUYER_BATCH_SIZE = 1000;
+
+    @Resource
+    private HmdpProperties hmdpProperties;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    //优惠券id -> 节点本地的秒杀券信息
+    private final Map<Long, SeckillVoucher> vouchers = new ConcurrentHashMap<>();
+
+    /**
+     * 获取节点本地缓存的秒杀券信息，没有预热过时返回null
+     */
+    public SeckillVoucher getVoucher(Long voucherId) {
+        return vouchers.get(voucherId);
+    }
+
+    @Scheduled(initialDelay = 1000, fixedDelayString = "${hmdp.seckill.preheat.interval:10000}")
+    public void preheat() {
+        HmdpProperties.Preheat properties = hmdpProperties.getSeckill().getPreheat();
+        if (!properties.isEnabled()) {
+            return;
+        }
+        //1.查询即将开始和正在进行的秒杀券
+        LocalDateTime now = LocalDateTime.now();
+        List<SeckillVoucher> list = seckillVoucherService.query()
+                .le("begin_time", now.plus(properties.getLookahead()))
+                .gt("end_time", now)
+                .list();
+        //2.刷新节点本地的秒杀券信息，每个节点都要做
+        for (SeckillVoucher voucher : list) {
+            vouchers.put(voucher.getVoucherId(), voucher);
+        }
+        vouchers.values().removeIf(voucher -> voucher.getEndTime().isBefore(now));
+        //3.加载Redis，同一时刻只需要一个节点去做
+        RLock lock = redissonClient.getLock("lock:seckill:preheat");
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            for (SeckillVoucher voucher : list) {
+                try {
+                    preheatRedis(voucher);
+                } catch (Exception e) {
+                    log.error("秒杀券预热失败, voucherId:{}", voucher.getVoucherId(), e);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void preheatRedis(SeckillVoucher voucher) {
+        Long voucherId = voucher.getVoucherId();
+        String stockKey = RedisConstants.SECKILL_STOCK_KEY + voucherId;
+        String metaKey = RedisConstants.SECKILL_META_KEY + voucherId;
+        //1.Redis中没有这张券的数据，先恢复已经下过单的用户，避免恢复库存后重复下单
+        Long exists = stringRedisTemplate.countExistingKeys(Arrays.asList(metaKey, stockKey));
+        boolean bitmap = isBitmap(voucher);
+        if (exists == null || exists == 0) {
+            loadBuyers(voucherId, "seckill:order:" + voucherId, bitmap);
+        }
+        //2.初始化库存或刷新时间窗口，按新增时确定的分片数恢复
+        int shards = voucher.getStockShards() == null ? 1 : Math.max(1, Math.min(voucher.getStockShards(), voucher.getStock()));
+        Long initialized = stringRedisTemplate.execute(
+                PREHEAT_SCRIPT,
+                Collections.emptyList(),
+                voucherId.toString(),
+                voucher.getStock().toString(),
+                String.valueOf(shards),
+                String.valueOf(toEpochMilli(voucher.getBeginTime())),
+                String.valueOf(toEpochMilli(voucher.getEndTime())),
+                bitmap ? "1" : "0"
+        );
+        if (initialized != null && initialized == 1) {
+            log.info("秒杀券预热完成, voucherId:{}, stock:{}", voucherId, voucher.getStock());
+        }
+    }
+
+    /**
+     * 按数据库中的订单把已下单用户写入orderKey，对账重建已下单用户时也会用到
+     */
+    void loadBuyers(Long voucherId, String orderKey, boolean bitmap) {
+        //已取消(状态4)的订单不占用一人一单的名额
+        List<VoucherOrder> orders = voucherOrderService.query()
+                .select("user_id")
+                .eq("voucher_id", voucherId)
+                .ne("status", 4)
+                .list();
+        if (bitmap) {
+            //Bitmap没有批量SETBIT，用管道减少网络往返
+            byte[] key = orderKey.getBytes(StandardCharsets.UTF_8);
+            for (int i = 0; i < orders.size(); i += BUYER_BATCH_SIZE) {
+                List<VoucherOrder> batch = orders.subList(i, Math.min(i + BUYER_BATCH_SIZE, orders.size()));
+                stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    for (VoucherOrder order : batch) {
+                        connection.setBit(key, order.getUserId(), true);
+                    }
+                    return null;
+                });
+            }
+            return;
+        }
+        for (int i = 0; i < orders.size(); i += BUYER_BATCH_SIZE) {
+            String[] batch = orders.subList(i, Math.min(i + BUYER_BATCH_SIZE, orders.size())).stream()
+                    .map(order -> order.getUserId().toString())
+                    .toArray(String[]::new);
+            stringRedisTemplate.opsForSet().add(orderKey, batch);
+        }
+    }
+
+    static boolean isBitmap(SeckillVoucher voucher) {
+        return voucher.getDedupMode() != null && voucher.getDedupMode() == 1;
+    }
+
+    private static long toEpochMilli(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+}
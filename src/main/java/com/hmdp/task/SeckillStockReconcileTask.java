@@ -0,0 +1,350 @@
+package com.hmdp.task;
+
+import com.hmdp.config.HmdpProperties;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.mapper.SeckillVoucherMapper;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.utils.SeckillSoldOutRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_META_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+
+/**
+ * Redis与数据库库存对账任务，同一时刻只有一个节点执行。对每张秒杀券检查：
+ * Redis库存 + 节点租约库存 + 已下单用户数 == 数据库库存 + 未取消的订单数，已下单用户数 == 未取消的订单数。
+ * 下单过程中两边的总数始终相等，只有已下单用户数会暂时多于订单数(消息还没消费完)，
+ * 所以 stream.orders 中还有未处理完的订单消息(未确认或未投递)的秒杀券不做判断，
+ * 消费者停顿或者消息在重试等待时快照可能一直不变，不能只靠连续两次结果相同来确认；
+ * 没有未处理的订单消息、并且连续两次对账结果完全相同的差异才会被确认和修复。
+ * 增量对账只检查上次对账之后数据库有变化的秒杀券和上次有差异的秒杀券，每隔几次做一次全量对账
+ */
+@Slf4j
+@Component
+public class SeckillStockReconcileTask {
+
+    private static final DefaultRedisScript<Long> RECONCILE_SCRIPT;
+    //返回 {是否超出扫描上限, 有未处理订单消息的券id...}
+    private static final DefaultRedisScript<List> IN_FLIGHT_SCRIPT;
+    static {
+        RECONCILE_SCRIPT = new DefaultRedisScript<>();
+        RECONCILE_SCRIPT.setLocation(new ClassPathResource("seckill_reconcile.lua"));
+        RECONCILE_SCRIPT.setResultType(Long.class);
+        IN_FLIGHT_SCRIPT = new DefaultRedisScript<>();
+        IN_FLIGHT_SCRIPT.setLocation(new ClassPathResource("seckill_order_inflight.lua"));
+        IN_FLIGHT_SCRIPT.setResultType(List.class);
+    }
+
+    //查找未处理订单消息时最多扫描的消息数，积压超过这个数量时本次不确认任何差异
+    private static final int IN_FLIGHT_SCAN_LIMIT = 10000;
+    //有未处理订单消息的秒杀券在 SUSPECT_KEY 中的值，之后需要再连续两次结果相同才确认
+    private static final String IN_FLIGHT = "in-flight";
+
+    //上次对账看到的秒杀券最大更新时间
+    private static final String WATERMARK_KEY = "seckill:reconcile:watermark";
+    //有差异的秒杀券 -> 对账结果，下次对账时一定会再检查
+    private static final String SUSPECT_KEY = "seckill:reconcile:suspect";
+
+    @Resource
+    private HmdpProperties hmdpProperties;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private SeckillVoucherMapper seckillVoucherMapper;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    @Resource
+    private SeckillPreheatTask seckillPreheatTask;
+
+    @Resource
+    private SeckillSoldOutRegistry soldOutRegistry;
+
+    //本节点执行对账的次数，用来决定什么时候做全量对账
+    private long runs;
+
+    /**
+     * 一张秒杀券的对账结果
+     */
+    private static class Snapshot {
+        long stock;
+        long leased;
+        long buyers;
+        boolean bitmap;
+        long dbStock;
+        long dbOrders;
+
+        long redisTotal() {
+            return stock + leased + buyers;
+        }
+
+        long dbTotal() {
+            return dbStock + dbOrders;
+        }
+
+        boolean consistent() {
+            return redisTotal() == dbTotal() && buyers == dbOrders;
+        }
+
+        @Override
+        public String toString() {
+            return stock + "," + leased + "," + buyers + "," + dbStock + "," + dbOrders;
+        }
+    }
+
+    @Scheduled(initialDelayString = "${hmdp.seckill.reconcile.interval:60000}", fixedDelayString = "${hmdp.seckill.reconcile.interval:60000}")
+    public void reconcile() {
+        HmdpProperties.Reconcile properties = hmdpProperties.getSeckill().getReconcile();
+        if (!properties.isEnabled()) {
+            return;
+        }
+        RLock lock = redissonClient.getLock("lock:seckill:reconcile");
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            doReconcile(properties);
+        } catch (Exception e) {
+            log.error("库存对账失败", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void doReconcile(HmdpProperties.Reconcile properties) {
+        //1.确定要对账的秒杀券
+        String watermark = stringRedisTemplate.opsForValue().get(WATERMARK_KEY);
+        boolean full = watermark == null || runs++ % Math.max(1, properties.getFullScanEvery()) == 0;
+        List<SeckillVoucher> vouchers;
+        LocalDateTime now = LocalDateTime.now();
+        if (full) {
+            //1.1.全量：所有已经预热和正在进行的秒杀券
+            vouchers = seckillVoucherService.query()
+                    .select("voucher_id", "update_time")
+                    .le("begin_time", now.plus(hmdpProperties.getSeckill().getPreheat().getLookahead()))
+                    .gt("end_time", now)
+                    .list();
+        } else {
+            //1.2.增量：上次对账之后数据库有变化的秒杀券，时间只精确到秒，所以包含边界
+            vouchers = seckillVoucherService.query()
+                    .select("voucher_id", "update_time")
+                    .ge("update_time", LocalDateTime.parse(watermark))
+                    .list();
+        }
+        Set<Long> voucherIds = new LinkedHashSet<>();
+        LocalDateTime maxUpdateTime = watermark == null ? null : LocalDateTime.parse(watermark);
+        for (SeckillVoucher voucher : vouchers) {
+            voucherIds.add(voucher.getVoucherId());
+            if (maxUpdateTime == null || voucher.getUpdateTime().isAfter(maxUpdateTime)) {
+                maxUpdateTime = voucher.getUpdateTime();
+            }
+        }
+        //1.3.上次有差异的秒杀券
+        Map<Object, Object> suspects = stringRedisTemplate.opsForHash().entries(SUSPECT_KEY);
+        for (Object id : suspects.keySet()) {
+            voucherIds.add(Long.valueOf(id.toString()));
+        }
+        //2.分批对账
+        List<Long> ids = new ArrayList<>(voucherIds);
+        int batchSize = Math.max(1, properties.getBatchSize());
+        int mismatched = 0;
+        for (int i = 0; i < ids.size(); i += batchSize) {
+            mismatched += reconcileBatch(ids.subList(i, Math.min(i + batchSize, ids.size())), suspects, properties);
+        }
+        if (maxUpdateTime != null) {
+            stringRedisTemplate.opsForValue().set(WATERMARK_KEY, maxUpdateTime.toString());
+        }
+        log.info("库存对账完成, 方式:{}, 秒杀券:{}, 确认的差异:{}", full ? "全量" : "增量", ids.size(), mismatched);
+    }
+
+    /**
+     * 对账一批秒杀券，返回确认存在差异的数量
+     */
+    private int reconcileBatch(List<Long> voucherIds, Map<Object, Object> suspects, HmdpProperties.Reconcile properties) {
+        //1.读取Redis：先一次管道读取元数据(分片数、一人一单记录方式)，再一次管道读取库存、租约和已下单用户数
+        Map<Long, Snapshot> snapshots = readRedis(voucherIds);
+        if (snapshots.isEmpty()) {
+            return 0;
+        }
+        //2.读取Redis之后、查询数据库之前找出有未处理订单消息的秒杀券，
+        // 之后才确认的消息在查询数据库之前已经提交，数据库能看到这些订单
+        Set<String> inFlight = inFlightVouchers();
+        //3.一次GROUP BY查询数据库库存和订单数，同一条SQL读到的两个值是一致的
+        List<Map<String, Object>> rows = seckillVoucherMapper.queryStockAndOrders(snapshots.keySet());
+        for (Map<String, Object> row : rows) {
+            Snapshot snapshot = snapshots.get(((Number) row.get("voucherId")).longValue());
+            if (snapshot != null) {
+                snapshot.dbStock = ((Number) row.get("stock")).longValue();
+                snapshot.dbOrders = ((Number) row.get("orders")).longValue();
+            }
+        }
+        //4.比较
+        int mismatched = 0;
+        for (Map.Entry<Long, Snapshot> entry : snapshots.entrySet()) {
+            Long voucherId = entry.getKey();
+            Snapshot snapshot = entry.getValue();
+            String field = voucherId.toString();
+            if (snapshot.consistent()) {
+                if (suspects.containsKey(field)) {
+                    stringRedisTemplate.opsForHash().delete(SUSPECT_KEY, field);
+                }
+                continue;
+            }
+            //4.1.还有未处理完的订单消息，差异可能就是这些订单，不确认也不修复
+            if (inFlight == null || inFlight.contains(field)) {
+                stringRedisTemplate.opsForHash().put(SUSPECT_KEY, field, IN_FLIGHT);
+                log.debug("库存对账发现差异，有未处理完的订单消息, voucherId:{}, 库存,租约,用户,数据库库存,订单:{}", voucherId, snapshot);
+                continue;
+            }
+            //4.2.第一次发现或者还在变化，下次再看
+            if (!snapshot.toString().equals(suspects.get(field))) {
+                stringRedisTemplate.opsForHash().put(SUSPECT_KEY, field, snapshot.toString());
+                log.debug("库存对账发现差异，等待下次确认, voucherId:{}, 库存,租约,用户,数据库库存,订单:{}", voucherId, snapshot);
+                continue;
+            }
+            //4.3.连续两次结果相同，确认差异
+            mismatched++;
+            log.warn("库存对账差异, voucherId:{}, Redis库存:{}, 租约库存:{}, 已下单用户:{}, 数据库库存:{}, 订单:{}, 总数差异:{}",
+                    voucherId, snapshot.stock, snapshot.leased, snapshot.buyers, snapshot.dbStock, snapshot.dbOrders,
+                    snapshot.redisTotal() - snapshot.dbTotal());
+            if (properties.isRepair()) {
+                repair(voucherId, snapshot);
+            }
+        }
+        return mismatched;
+    }
+
+    /**
+     * stream.orders 中还没有确认或者还没有投递的订单消息所属的秒杀券，消息太多没有扫描完时返回null
+     */
+    private Set<String> inFlightVouchers() {
+        List<?> result = stringRedisTemplate.execute(IN_FLIGHT_SCRIPT, Collections.emptyList(),
+                String.valueOf(IN_FLIGHT_SCAN_LIMIT));
+        if (result == null || result.isEmpty() || (Long) result.get(0) != 0) {
+            return null;
+        }
+        Set<String> voucherIds = new HashSet<>();
+        for (int i = 1; i < result.size(); i++) {
+            voucherIds.add(result.get(i).toString());
+        }
+        return voucherIds;
+    }
+
+    private Map<Long, Snapshot> readRedis(List<Long> voucherIds) {
+        List<Object> metas = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Long voucherId : voucherIds) {
+                connection.hashCommands().hMGet(bytes(SECKILL_META_KEY + voucherId), bytes("shards"), bytes("dedup"));
+            }
+            return null;
+        });
+        //没有预热过的秒杀券不对账
+        Map<Long, Snapshot> snapshots = new HashMap<>();
+        Map<Long, Integer> shardsOfVoucher = new HashMap<>();
+        for (int i = 0; i < voucherIds.size(); i++) {
+            List<?> meta = (List<?>) metas.get(i);
+            if (meta == null || meta.get(0) == null) {
+                continue;
+            }
+            Snapshot snapshot = new Snapshot();
+            snapshot.bitmap = "1".equals(meta.get(1));
+            snapshots.put(voucherIds.get(i), snapshot);
+            shardsOfVoucher.put(voucherIds.get(i), Integer.parseInt(meta.get(0).toString()));
+        }
+        if (snapshots.isEmpty()) {
+            return snapshots;
+        }
+        //每张券依次是：库存(分片时每个分片一个)、租约库存、已下单用户数
+        List<Long> ids = new ArrayList<>(snapshots.keySet());
+        List<Object> values = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Long voucherId : ids) {
+                int shards = shardsOfVoucher.get(voucherId);
+                if (shards <= 1) {
+                    connection.stringCommands().get(bytes(SECKILL_STOCK_KEY + voucherId));
+                } else {
+                    for (int s = 0; s < shards; s++) {
+                        connection.stringCommands().get(bytes(SECKILL_STOCK_KEY + voucherId + ":" + s));
+                    }
+                }
+                connection.hashCommands().hVals(bytes("seckill:lease:" + voucherId));
+                byte[] orderKey = bytes("seckill:order:" + voucherId);
+                if (snapshots.get(voucherId).bitmap) {
+                    connection.stringCommands().bitCount(orderKey);
+                } else {
+                    connection.setCommands().sCard(orderKey);
+                }
+            }
+            return null;
+        });
+        int index = 0;
+        for (Long voucherId : ids) {
+            Snapshot snapshot = snapshots.get(voucherId);
+            int shards = Math.max(1, shardsOfVoucher.get(voucherId));
+            for (int s = 0; s < shards; s++) {
+                Object stock = values.get(index++);
+                snapshot.stock += stock == null ? 0 : Long.parseLong(stock.toString());
+            }
+            for (Object leased : (List<?>) values.get(index++)) {
+                snapshot.leased += Long.parseLong(leased.toString());
+            }
+            snapshot.buyers = (Long) values.get(index++);
+        }
+        return snapshots;
+    }
+
+    /**
+     * 以数据库为准修复Redis：已下单用户和订单数不一致时按订单重建，库存改为 数据库库存 - 租约库存
+     */
+    private void repair(Long voucherId, Snapshot snapshot) {
+        String rebuildKey = "";
+        if (snapshot.buyers != snapshot.dbOrders) {
+            rebuildKey = "seckill:order:" + voucherId + ":rebuild";
+            stringRedisTemplate.delete(rebuildKey);
+            seckillPreheatTask.loadBuyers(voucherId, rebuildKey, snapshot.bitmap);
+        }
+        long targetStock = Math.max(0, snapshot.dbStock - snapshot.leased);
+        Long result = stringRedisTemplate.execute(RECONCILE_SCRIPT, Collections.emptyList(),
+                voucherId.toString(), String.valueOf(snapshot.stock + snapshot.leased),
+                String.valueOf(snapshot.buyers), String.valueOf(targetStock), rebuildKey);
+        if (result == null || result != 1) {
+            log.info("秒杀券在对账之后有新的订单，放弃修复, voucherId:{}", voucherId);
+            return;
+        }
+        stringRedisTemplate.opsForHash().delete(SUSPECT_KEY, voucherId.toString());
+        if (targetStock > 0) {
+            soldOutRegistry.clear(voucherId);
+        }
+        log.warn("库存对账修复完成, voucherId:{}, Redis库存:{} -> {}, 已下单用户:{} -> {}",
+                voucherId, snapshot.stock, targetStock, snapshot.buyers,
+                rebuildKey.isEmpty() ? snapshot.buyers : snapshot.dbOrders);
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
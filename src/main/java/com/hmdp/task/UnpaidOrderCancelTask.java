@@ -0,0 +1,120 @@
+package com.hmdp.task;
+
+import com.hmdp.config.HmdpProperties;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.SeckillOrderStatus;
+import com.hmdp.utils.SeckillSoldOutRegistry;
+import com.hmdp.utils.UnpaidOrderQueue;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * 超时未支付订单的取消任务：从延迟队列 order:unpaid 中成批取出到期的订单，
+ * 1.一个事务内取消仍未支付的订单(状态改为4)，按优惠券合并归还数据库库存
+ * 2.每张券执行一次脚本，归还Redis库存并移除一人一单记录，用户可以重新抢购
+ * 3.处理完的订单移出队列，已经支付的订单直接移出
+ */
+@Slf4j
+@Component
+public class UnpaidOrderCancelTask {
+
+    private static final DefaultRedisScript<Long> CANCEL_SCRIPT;
+    static {
+        CANCEL_SCRIPT = new DefaultRedisScript<>();
+        CANCEL_SCRIPT.setLocation(new ClassPathResource("seckill_cancel.lua"));
+        CANCEL_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private HmdpProperties hmdpProperties;
+
+    @Resource
+    private UnpaidOrderQueue unpaidOrderQueue;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillSoldOutRegistry soldOutRegistry;
+
+    @Resource
+    private SeckillOrderStatus orderStatus;
+
+    @Scheduled(initialDelay = 5000, fixedDelayString = "${hmdp.seckill.order.cancel.interval:1000}")
+    public void cancel() {
+        HmdpProperties.Cancel properties = hmdpProperties.getSeckill().getOrder().getCancel();
+        if (!properties.isEnabled()) {
+            return;
+        }
+        int batchSize = Math.max(1, properties.getBatchSize());
+        try {
+            //一直处理到没有到期的订单为止
+            int polled;
+            do {
+                polled = cancelBatch(batchSize);
+            } while (polled == batchSize);
+        } catch (Exception e) {
+            //没有处理完的订单留在队列中，到重试时间后会被重新取出
+            log.error("取消超时未支付订单失败", e);
+        }
+    }
+
+    /**
+     * 处理一批到期的订单，返回取出的订单数
+     */
+    private int cancelBatch(int batchSize) {
+        //1.取出到期的订单
+        List<String> ids = unpaidOrderQueue.poll(batchSize);
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        //2.取消仍未支付的订单，归还数据库库存
+        List<Long> orderIds = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            orderIds.add(Long.valueOf(id));
+        }
+        List<VoucherOrder> canceled = voucherOrderService.cancelUnpaidOrders(orderIds);
+        orderStatus.cancelled(canceled);
+        //3.归还Redis库存，每张券执行一次脚本
+        Map<Long, List<VoucherOrder>> ordersOfVoucher = canceled.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId));
+        for (Map.Entry<Long, List<VoucherOrder>> entry : ordersOfVoucher.entrySet()) {
+            Long voucherId = entry.getKey();
+            List<String> args = new ArrayList<>(entry.getValue().size() + 1);
+            args.add(voucherId.toString());
+            for (VoucherOrder order : entry.getValue()) {
+                args.add(order.getUserId().toString());
+            }
+            try {
+                Long returned = stringRedisTemplate.execute(CANCEL_SCRIPT, Collections.emptyList(), args.toArray());
+                if (returned != null && returned > 0) {
+                    soldOutRegistry.clear(voucherId);
+                }
+            } catch (Exception e) {
+                //数据库已经取消，Redis中的差异由库存对账修复
+                log.error("归还Redis库存失败, voucherId:{}, count:{}", voucherId, entry.getValue().size(), e);
+            }
+        }
+        //4.移出队列
+        unpaidOrderQueue.remove(ids);
+        if (!canceled.isEmpty()) {
+            log.info("取消超时未支付订单, 到期:{}, 取消:{}", ids.size(), canceled.size());
+        }
+        return ids.size();
+    }
+}
@@ -0,0 +1,217 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+import cn.hutool.core.util.NumberUtil;
+import com.hmdp.config.HmdpProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Supplier;
+
+import static com.hmdp.utils.RedisConstants.CACHE_BLOOM_CHANNEL;
+
+/**
+ * 防止缓存穿透的布隆过滤器，每个key前缀一个，保存在JVM内，判断id不存在时 CacheClient 不再访问Redis和数据库。
+ * 启动时和定时任务按数据库重建，新增数据后调用 add，通过 Redis 发布订阅同步到所有节点，消息格式：key前缀|id。
+ * 发布订阅消息可能丢失，数据也可能不经过 add 直接写入数据库，所以大于重建时最大id的数字id总是判断为可能存在，
+ * 自增id的新数据不会被误判为不存在，只有重建时已经存在的id范围内的不存在的id会被拦截
+ */
+@Slf4j
+@Component
+public class CacheBloomFilter implements MessageListener {
+
+    //各key前缀从数据库加载全部id的方法
+    private final Map<String, Supplier<Collection<?>>> loaders = new ConcurrentHashMap<>();
+
+    private final Map<String, Filter> filters = new ConcurrentHashMap<>();
+
+    //正在重建的key前缀在重建期间新增的id，替换过滤器后补上，避免丢失
+    private final Map<String, Set<String>> rebuilding = new ConcurrentHashMap<>();
+
+    @Resource
+    private HmdpProperties hmdpProperties;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @PostConstruct
+    private void init() {
+        if (hmdpProperties.getCache().getBloom().isEnabled()) {
+            redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(CACHE_BLOOM_CHANNEL));
+        }
+    }
+
+    /**
+     * 为key前缀注册布隆过滤器并立即按数据库构建，loader返回数据库中全部的id
+     */
+    public void register(String keyPrefix, Supplier<Collection<?>> loader) {
+        if (!hmdpProperties.getCache().getBloom().isEnabled()) {
+            return;
+        }
+        loaders.put(keyPrefix, loader);
+        rebuild(keyPrefix);
+    }
+
+    /**
+     * id是否可能存在，没有注册过滤器的key前缀总是返回true
+     */
+    public boolean mightContain(String keyPrefix, Object id) {
+        Filter filter = filters.get(keyPrefix);
+        if (filter == null) {
+            return true;
+        }
+        //重建之后新增的数据，可能没有收到通知
+        Long number = toLong(id);
+        if (number != null && number > filter.maxId) {
+            return true;
+        }
+        return filter.mightContain(id.toString());
+    }
+
+    private static Long toLong(Object id) {
+        if (id instanceof Number) {
+            return ((Number) id).longValue();
+        }
+        String value = id.toString();
+        return NumberUtil.isLong(value) ? Long.valueOf(value) : null;
+    }
+
+    /**
+     * 新增数据后加入布隆过滤器，并通知其它节点
+     */
+    public void add(String keyPrefix, Object id) {
+        if (!loaders.containsKey(keyPrefix)) {
+            return;
+        }
+        addLocal(keyPrefix, id.toString());
+        stringRedisTemplate.convertAndSend(CACHE_BLOOM_CHANNEL, keyPrefix + "|" + id);
+    }
+
+    private void addLocal(String keyPrefix, String id) {
+        Filter filter = filters.get(keyPrefix);
+        if (filter != null) {
+            filter.add(id);
+        }
+        Set<String> added = rebuilding.get(keyPrefix);
+        if (added != null) {
+            added.add(id);
+        }
+    }
+
+    /**
+     * 按数据库重建全部布隆过滤器，删除的数据在重建后才会从过滤器中去掉
+     */
+    public void rebuildAll() {
+        for (String keyPrefix : loaders.keySet()) {
+            try {
+                rebuild(keyPrefix);
+            } catch (Exception e) {
+                //重建失败时继续使用原来的过滤器
+                log.error("重建布隆过滤器失败, 前缀:{}", keyPrefix, e);
+            }
+        }
+    }
+
+    private void rebuild(String keyPrefix) {
+        HmdpProperties.Bloom properties = hmdpProperties.getCache().getBloom();
+        Set<String> added = ConcurrentHashMap.newKeySet();
+        rebuilding.put(keyPrefix, added);
+        try {
+            //1.加载数据库中全部的id，预计元素数取配置值和当前数据量两倍中较大的，数据增长后误判率不会很快变高
+            Collection<?> ids = loaders.get(keyPrefix).get();
+            Filter filter = new Filter(Math.max(properties.getExpectedInsertions(), ids.size() * 2L), properties.getFpp());
+            for (Object id : ids) {
+                filter.add(id.toString());
+                Long number = toLong(id);
+                if (number != null && number > filter.maxId) {
+                    filter.maxId = number;
+                }
+            }
+            //2.替换原来的过滤器，再补上加载期间新增的id
+            filters.put(keyPrefix, filter);
+            for (String id : added) {
+                filter.add(id);
+            }
+            log.info("重建布隆过滤器, 前缀:{}, 元素:{}, 内存:{}字节, 哈希函数:{}",
+                    keyPrefix, ids.size(), filter.bits.length() * 8L, filter.hashes);
+        } finally {
+            rebuilding.remove(keyPrefix, added);
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        int index = body.lastIndexOf('|');
+        if (index <= 0) {
+            log.error("无法解析布隆过滤器消息:{}", body);
+            return;
+        }
+        addLocal(body.substring(0, index), body.substring(index + 1));
+    }
+
+    /**
+     * 位数组 m = -n*ln(p)/(ln2)^2，哈希函数个数 k = m/n*ln2，
+     * k个位置由一次128位MurmurHash的两个64位结果组合得到：h1 + i*h2
+     */
+    private static class Filter {
+
+        private final AtomicLongArray bits;
+
+        private final long size;
+
+        private final int hashes;
+
+        //重建时加载的最大数字id，大于它的id不经过过滤器判断
+        private volatile long maxId = Long.MIN_VALUE;
+
+        Filter(long expected, double fpp) {
+            expected = Math.max(1, expected);
+            long m = (long) Math.ceil(-expected * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+            int words = (int) Math.min(Integer.MAX_VALUE, Math.max(1, (m + 63) / 64));
+            bits = new AtomicLongArray(words);
+            size = words * 64L;
+            hashes = Math.max(1, (int) Math.round((double) size / expected * Math.log(2)));
+        }
+
+        void add(String value) {
+            long[] hash = MurmurHash.hash128(value);
+            long combined = hash[0];
+            for (int i = 0; i < hashes; i++) {
+                long index = (combined & Long.MAX_VALUE) % size;
+                long mask = 1L << index;
+                bits.accumulateAndGet((int) (index >>> 6), mask, (word, bit) -> word | bit);
+                combined += hash[1];
+            }
+        }
+
+        boolean mightContain(String value) {
+            long[] hash = MurmurHash.hash128(value);
+            long combined = hash[0];
+            for (int i = 0; i < hashes; i++) {
+                long index = (combined & Long.MAX_VALUE) % size;
+                if ((bits.get((int) (index >>> 6)) & (1L << index)) == 0) {
+                    return false;
+                }
+                combined += hash[1];
+            }
+            return true;
+        }
+    }
+}
@@ -1,21 +1,36 @@
 package com.hmdp.utils;
 
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
+import com.hmdp.config.HmdpProperties;
 import com.hmdp.entity.Shop;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TTL;
 
@@ -26,31 +41,94 @@ public class CacheClient {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    //进程内一级缓存，没有开启时所有操作直接跳过
+    @Resource
+    private LocalCache localCache;
+
+    //防止缓存穿透的布隆过滤器，没有注册过滤器的key前缀不做判断
+    @Resource
+    private CacheBloomFilter bloomFilter;
+
+    //本节点正在重建的缓存，key为缓存key，同一个key的并发请求共用一次重建的结果
+    private final Map<String, CompletableFuture<Object>> rebuildFlights = new ConcurrentHashMap<>();
+
+    @Resource
+    private HmdpProperties hmdpProperties;
+
+    //全部的编码方式，删除缓存时每种编码的key都要删除
+    @Resource
+    private List<CacheCodec> codecs;
+
+    //当前写入和读取使用的编码
+    private CacheCodec codec;
+
+    //缓存穿透时写入的空值
+    private static final byte[] EMPTY = new byte[0];
+
+    //逻辑过期数据的头部：1字节标记 + 8字节过期时间(毫秒时间戳，大端)，后面是编码后的数据。
+    //0xFF 不会出现在 UTF-8 文本的开头；旧格式的 RedisData 用 Kryo 编码时第一个字节是 data 字段类型的注册编号(为空时是0)，
+    //注册的类型很少，也不会是 0xFF，以此区分旧格式的 RedisData
+    private static final byte LOGICAL_EXPIRE_MAGIC = (byte) 0xFF;
+    private static final int LOGICAL_EXPIRE_HEADER = 9;
+
+    @PostConstruct
+    private void init() {
+        String name = hmdpProperties.getCache().getCodec();
+        codec = codecs.stream().filter(c -> c.name().equals(name)).findFirst()
+                .orElseThrow(() -> new IllegalStateException("未知的缓存编码: " + name));
+    }
+
     /**
-     * 设置普通缓存
+     * 设置普通缓存，同时通知所有节点清除一级缓存
      * @param key
      * @param value
      * @param time
      * @param unit
      */
     public void set(String key, Object value, Long time, TimeUnit unit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        setRaw(key, codec.encode(value), time, unit);
+        localCache.invalidate(key);
     }
 
     /**
-     * 逻辑过期
+     * 逻辑过期，同时通知所有节点清除一级缓存
      * @param key
      * @param value
      * @param time
      * @param unit
      */
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit) {
-        // 设置逻辑过期
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(time));
         //写入redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        setRaw(key, logicalExpireBytes(value, time, unit), null, null);
+        localCache.invalidate(key);
+    }
+
+    private byte[] logicalExpireBytes(Object value, Long time, TimeUnit unit) {
+        // 设置逻辑过期
+        long expireMillis = System.currentTimeMillis() + unit.toMillis(time);
+        byte[] bytes;
+        if (hmdpProperties.getCache().isLogicalExpireHeader()) {
+            //1字节标记 + 8字节过期时间 + 编码后的数据
+            byte[] payload = codec.encode(value);
+            bytes = ByteBuffer.allocate(LOGICAL_EXPIRE_HEADER + payload.length)
+                    .put(LOGICAL_EXPIRE_MAGIC).putLong(expireMillis).put(payload).array();
+        } else {
+            //旧格式 RedisData
+            RedisData redisData = new RedisData();
+            redisData.setData(value);
+            redisData.setExpireTime(LocalDateTime.ofInstant(Instant.ofEpochMilli(expireMillis), ZoneId.systemDefault()));
+            bytes = codec.encode(redisData);
+        }
+        return bytes;
+    }
+
+    /**
+     * 删除缓存，数据更新后调用，同时通知所有节点清除一级缓存
+     * @param key
+     */
+    public void delete(String key) {
+        stringRedisTemplate.delete(codecs.stream().map(c -> c.tag() + key).distinct().collect(Collectors.toList()));
+        localCache.invalidate(key);
     }
 
     /**
@@ -70,17 +148,33 @@ public class CacheClient {
         // 设置缓存时添加一个随机时间偏移量（例如：0到5分钟之间的随机分钟数）,防止缓存雪崩
         int randomTtl = (int) (Math.random() * 6); // 生成0到5之间的随机整数
 
-        //1.从redis中查询缓存
+        //0.1 布隆过滤器判断id不存在，不访问redis和数据库
+        if (!bloomFilter.mightContain(keyPrefix, id)) {
+            return null;
+        }
         String key = keyPrefix + id;
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
+        //0.2 先查一级缓存
+        Object local = localCache.get(keyPrefix, key);
+        if (local == LocalCache.NULL_VALUE) {
+            return null;
+        }
+        if (type.isInstance(local)) {
+            return type.cast(local);
+        }
+        long version = localCache.version(key);
+        //1.从redis中查询缓存
+        byte[] cached = getRaw(key);
         //2.判断是否存在
-        if(StrUtil.isNotBlank(shopJson)){
-            //3.存在，直接返回
-            return JSONUtil.toBean(shopJson, type);
+        if(cached != null && cached.length > 0){
+            //3.存在，写入一级缓存后返回
+            R r = codec.decode(cached, type);
+            localCache.put(key, r, version);
+            return r;
 
         }
         //判断命中的数据是否为空（空字符串）
-        if(shopJson!=null){
+        if(cached!=null){
+            localCache.put(key, LocalCache.NULL_VALUE, version);
             return null;
         }
         //4.不存在，查询数据库
@@ -88,12 +182,13 @@ public class CacheClient {
         //5.不存在返回错误
         if(r == null){
             //将空值存储到redis中
-            stringRedisTemplate.opsForValue().set(key,"",RedisConstants.CACHE_NULL_TTL+randomTtl, TimeUnit.MINUTES);
+            setRaw(key, EMPTY, RedisConstants.CACHE_NULL_TTL+randomTtl, TimeUnit.MINUTES);
             //返回错误信息
             return null;
         }
-        //6.存在，写入缓存
-        this.set(key,r,time,unit);
+        //6.存在，写入缓存，redis中原来没有这个key，其它节点的一级缓存也不会有，不需要通知
+        setRaw(key, codec.encode(r), time, unit);
+        localCache.put(key, r, version);
         //7.返回数据
         return r;
 
@@ -106,55 +201,117 @@ public class CacheClient {
      */
     public <R,ID> R queryWithMutex(String keyPrefix,ID id,Class<R> type, Function<ID,R> dbFallback, Long time, TimeUnit unit){
 
+        //0.1 布隆过滤器判断id不存在，不访问redis和数据库
+        if (!bloomFilter.mightContain(keyPrefix, id)) {
+            return null;
+        }
         String key = keyPrefix + id;
+        //0.2 先查一级缓存
+        Object local = localCache.get(keyPrefix, key);
+        if (local == LocalCache.NULL_VALUE) {
+            return null;
+        }
+        if (type.isInstance(local)) {
+            return type.cast(local);
+        }
+        long version = localCache.version(key);
         //1.从redis中查询缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = getRaw(key);
         //2.判断是否存在
-        if(StrUtil.isNotBlank(json)){
-            //3.存在，直接返回
-            return JSONUtil.toBean(json, type);
+        if(bytes != null && bytes.length > 0){
+            //3.存在，写入一级缓存后返回
+            R cached = codec.decode(bytes, type);
+            localCache.put(key, cached, version);
+            return cached;
 
         }
         //判断命中的数据是否为空（这里的null不是空字符串，所以是!=）
-        if(json!=null){
+        if(bytes!=null){
             //返回错误信息
+            localCache.put(key, LocalCache.NULL_VALUE, version);
             return null;
         }
-        //4.实现缓存重建
-        String lockKey = RedisConstants.LOCK_SHOP_KEY + id;//拼接出来锁的key
-        R r = null;
-
+        //4.实现缓存重建，同一个key本节点只有一个线程去竞争互斥锁，其它线程等待它的结果
+        CompletableFuture<Object> flight = new CompletableFuture<>();
+        CompletableFuture<Object> existing = rebuildFlights.putIfAbsent(key, flight);
+        if (existing != null) {
+            return type.cast(awaitRebuild(existing));
+        }
         try {
+            R r = rebuildWithMutex(key, id, type, dbFallback, time, unit, version);
+            flight.complete(r);
+            return r;
+        } catch (RuntimeException e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            rebuildFlights.remove(key, flight);
+        }
+    }
 
-            //4.1获取互斥锁
-            boolean isLock = trylock(lockKey);
-            //4.2判断是否获取锁成功
-            if (!isLock){
-                //4.3 失败，休眠并重试
+    /**
+     * 获取互斥锁后查询数据库重建缓存，没有获取到锁时等待其它节点重建完成
+     */
+    private <R,ID> R rebuildWithMutex(String key, ID id, Class<R> type, Function<ID,R> dbFallback, Long time, TimeUnit unit, long version) {
+        String lockKey = RedisConstants.LOCK_SHOP_KEY + id;//拼接出来锁的key
+        try {
+            while (true) {
+                //4.1获取互斥锁
+                boolean isLock = trylock(lockKey);
+                //4.2判断是否获取锁成功
+                if (isLock) {
+                    try {
+                        //4.3成功，再查一次redis，其它节点可能刚刚重建完成
+                        byte[] bytes = getRaw(key);
+                        if (bytes != null) {
+                            return bytes.length > 0 ? codec.decode(bytes, type) : null;
+                        }
+                        //4.4根据id查询数据库
+                        R r = dbFallback.apply(id);
+                        //5.不存在返回错误
+                        if(r == null){
+                            //将空值存储到redis中
+                            setRaw(key, EMPTY, RedisConstants.CACHE_NULL_TTL, unit);
+                            localCache.put(key, LocalCache.NULL_VALUE, version);
+                            //返回错误信息
+                            return null;
+                        }
+                        //6.存在，写入缓存
+                        setRaw(key, codec.encode(r), time, unit);
+                        localCache.put(key, r, version);
+                        return r;
+                    } finally {
+                        //7.释放互斥锁
+                        unlock(lockKey);
+                    }
+                }
+                //4.5 失败，其它节点正在重建，休眠后查询redis，还没有重建完成时重新获取锁
                 Thread.sleep(50);
-                return queryWithMutex(keyPrefix, id, type, dbFallback, time, unit);
-            }
-            //4.4成功，获取锁成功，根据id查询数据库
-            r = dbFallback.apply(id);
-/*            //模拟重建的延迟
-            Thread.sleep(200);*/
-            //5.不存在返回错误
-            if(r == null){
-                //将空值存储到redis中
-                stringRedisTemplate.opsForValue().set(key,"",RedisConstants.CACHE_NULL_TTL,unit);
-                //返回错误信息
-                return null;
+                byte[] bytes = getRaw(key);
+                if (bytes != null) {
+                    return bytes.length > 0 ? codec.decode(bytes, type) : null;
+                }
             }
-            //6.存在，写入缓存
-            stringRedisTemplate.opsForValue().set(key,JSONUtil.toJsonStr(r),time,unit);
         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             throw new RuntimeException(e);
-        }finally {
-            //7.释放互斥锁
-            unlock(lockKey);
         }
-        //8.返回数据
-        return r;
+    }
+
+    /**
+     * 等待本节点正在进行的重建，最多等待互斥锁的有效期
+     */
+    private Object awaitRebuild(CompletableFuture<Object> flight) {
+        try {
+            return flight.get(RedisConstants.LOCK_SHOP_TTL, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+        } catch (TimeoutException e) {
+            throw new IllegalStateException("等待缓存重建超时: " + e.getMessage(), e);
+        }
     }
 
     private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
@@ -166,23 +323,46 @@ public class CacheClient {
      */
     public <R,ID> R queryWithLogicExpire(String keyPrefix,ID id, Class<R> type, Function<ID,R> dbFallback, Long time, TimeUnit unit){
 
+        //0.1 布隆过滤器判断id不存在，不访问redis和数据库
+        if (!bloomFilter.mightContain(keyPrefix, id)) {
+            return null;
+        }
         String key = keyPrefix + id;
+        //0.2 先查一级缓存，一级缓存的有效期不超过逻辑过期时间，命中的一定没有过期
+        Object local = localCache.get(keyPrefix, key);
+        if (type.isInstance(local)) {
+            return type.cast(local);
+        }
+        long version = localCache.version(key);
         //1.从redis中查询缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = getRaw(key);
         //2.判断是否存在
-        if(StrUtil.isBlank(json)){
+        if(bytes == null || bytes.length == 0){
             //3.不存在，直接返回空
             return null;
 
         }
-        //4.命中，需要先把json反序列化成对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        JSONObject data = (JSONObject) redisData.getData();
-        R r = JSONUtil.toBean(data, type);
-        LocalDateTime expireTime = redisData.getExpireTime();
+        //4.命中，先读出过期时间，数据在需要返回时才反序列化
+        R r = null;
+        long expireMillis;
+        boolean header = bytes.length >= LOGICAL_EXPIRE_HEADER && bytes[0] == LOGICAL_EXPIRE_MAGIC;
+        if (header) {
+            expireMillis = readExpireMillis(bytes);
+        } else {
+            //4.1 旧格式 RedisData，需要整体反序列化，json编码得到的data是JSONObject，需要再转换一次
+            RedisData redisData = codec.decode(bytes, RedisData.class);
+            Object data = redisData.getData();
+            r = type.isInstance(data) ? type.cast(data) : JSONUtil.toBean((JSONObject) data, type);
+            expireMillis = redisData.getExpireTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        }
         //5.判断是否过期
-        if(expireTime.isAfter(LocalDateTime.now())){
-            //5.1 没有过期，直接返回
+        long now = System.currentTimeMillis();
+        if(expireMillis > now){
+            //5.1 没有过期，解码数据，写入一级缓存后返回
+            if (header) {
+                r = codec.decode(bytes, LOGICAL_EXPIRE_HEADER, bytes.length - LOGICAL_EXPIRE_HEADER, type);
+            }
+            localCache.put(key, r, version, expireMillis - now);
             return r;
         }
         //5.2 过期了，缓存重建
@@ -197,8 +377,8 @@ public class CacheClient {
                 try {
                     //查询数据库
                     R r1 = dbFallback.apply(id);
-                    //写入redis
-                    this.setWithLogicalExpire(key,r1,time,unit);
+                    //写入redis，各节点一级缓存的有效期不超过原来的逻辑过期时间，不需要通知
+                    setRaw(key, logicalExpireBytes(r1, time, unit), null, null);
                 } catch (Exception e) {
                     throw new RuntimeException(e);
                 }finally {
@@ -209,11 +389,45 @@ public class CacheClient {
 
         }
 
-        //6.4 失败，返回过期的商铺信息
+        //6.4 返回过期的商铺信息
+        if (header) {
+            r = codec.decode(bytes, LOGICAL_EXPIRE_HEADER, bytes.length - LOGICAL_EXPIRE_HEADER, type);
+        }
         return r;
 
     }
 
+    private static long readExpireMillis(byte[] bytes) {
+        long millis = 0;
+        for (int i = 1; i < LOGICAL_EXPIRE_HEADER; i++) {
+            millis = (millis << 8) | (bytes[i] & 0xFF);
+        }
+        return millis;
+    }
+
+    /**
+     * 按当前编码读取缓存，key前面加上编码的标记
+     */
+    private byte[] getRaw(String key) {
+        byte[] rawKey = (codec.tag() + key).getBytes(StandardCharsets.UTF_8);
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(rawKey));
+    }
+
+    /**
+     * 按当前编码写入缓存，time为null表示不设置过期时间
+     */
+    private void setRaw(String key, byte[] value, Long time, TimeUnit unit) {
+        byte[] rawKey = (codec.tag() + key).getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            if (time == null) {
+                connection.set(rawKey, value);
+            } else {
+                connection.set(rawKey, value, Expiration.from(time, unit), RedisStringCommands.SetOption.upsert());
+            }
+            return null;
+        });
+    }
+
     /**
      * 创建锁
      * @param key
@@ -0,0 +1,29 @@
+package com.hmdp.utils;
+
+/**
+ * CacheClient 缓存值的编码方式，由 hmdp.cache.codec 选择。
+ * 每种编码有自己的key前缀标记，不同编码的数据存放在不同的key中，逐个节点切换编码时新旧节点互不影响
+ */
+public interface CacheCodec {
+
+    /**
+     * 编码名称，对应 hmdp.cache.codec
+     */
+    String name();
+
+    /**
+     * 加在缓存key最前面的标记，为空表示使用原来的key；编码格式不兼容地变化时换一个标记
+     */
+    String tag();
+
+    byte[] encode(Object value);
+
+    default <T> T decode(byte[] bytes, Class<T> type) {
+        return decode(bytes, 0, bytes.length, type);
+    }
+
+    /**
+     * 解码 bytes 中从 offset 开始的 length 个字节，用于带头部的数据，不需要先复制出来
+     */
+    <T> T decode(byte[] bytes, int offset, int length, Class<T> type);
+}
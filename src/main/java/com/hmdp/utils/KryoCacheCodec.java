@@ -0,0 +1,73 @@
+package com.hmdp.utils;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.util.Pool;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.ShopType;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+
+/**
+ * Kryo 二进制编码：按字段顺序写值，不写字段名，一次就能解码出目标类型。
+ * 实体类增删字段或者注册的类型变化后旧数据无法解码，需要修改 tag，新数据写到新的key中
+ */
+@Component
+public class KryoCacheCodec implements CacheCodec {
+
+    //Kryo 不是线程安全的，每次使用时从池中取出
+    private final Pool<Kryo> kryoPool = new Pool<Kryo>(true, false, 64) {
+        @Override
+        protected Kryo create() {
+            Kryo kryo = new Kryo();
+            //只能读写注册过的类型，Redis 中的数据不能让解码时创建任意类的对象；
+            //类型不确定的字段(例如旧格式 RedisData.data)写入注册编号，注册顺序决定编号，只能在末尾追加
+            kryo.setRegistrationRequired(true);
+            kryo.register(Shop.class);
+            kryo.register(ShopType.class);
+            kryo.register(UserDTO.class);
+            kryo.register(RedisData.class);
+            kryo.register(ArrayList.class);
+            kryo.register(LocalDateTime.class);
+            //缓存的对象没有循环引用，关闭引用跟踪
+            kryo.setReferences(false);
+            return kryo;
+        }
+    };
+
+    @Override
+    public String name() {
+        return "kryo";
+    }
+
+    @Override
+    public String tag() {
+        return "kryo2:";
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        Kryo kryo = kryoPool.obtain();
+        try {
+            Output output = new Output(256, -1);
+            kryo.writeObject(output, value);
+            return output.toBytes();
+        } finally {
+            kryoPool.free(kryo);
+        }
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, int offset, int length, Class<T> type) {
+        Kryo kryo = kryoPool.obtain();
+        try {
+            return kryo.readObject(new Input(bytes, offset, length), type);
+        } finally {
+            kryoPool.free(kryo);
+        }
+    }
+}
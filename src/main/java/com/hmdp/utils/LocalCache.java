@@ -0,0 +1,161 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import com.hmdp.config.HmdpProperties;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.CACHE_INVALIDATE_CHANNEL;
+
+/**
+ * CacheClient 的进程内一级缓存：按容量淘汰最久未使用的key，按时间过期，缓存的是反序列化后的对象。
+ * 删除或更新缓存时通过 Redis 发布订阅通知所有节点清除本地的同一个key，消息内容就是key。
+ * 没有收到通知的节点(例如订阅断开)最多在有效期内读到旧数据
+ */
+@Component
+public class LocalCache implements MessageListener {
+
+    //空值占位，缓存穿透写入redis的空字符串在本地同样缓存
+    public static final Object NULL_VALUE = new Object();
+
+    private LRUCache<String, Object> cache;
+
+    //版本分段数，必须是2的幂
+    private static final int VERSION_STRIPES = 1024;
+
+    //各分段的key被清除的次数，查询redis之前记下，写入本地之前检查，期间同一分段有清除时放弃写入，避免把旧数据放回本地；
+    //按key分段，一个key被清除不影响其它大多数key写入本地
+    private final AtomicLongArray versions = new AtomicLongArray(VERSION_STRIPES);
+
+    //各key前缀的命中和未命中次数，每次输出统计后清零
+    private final Map<String, LongAdder> hits = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> misses = new ConcurrentHashMap<>();
+
+    @Resource
+    private HmdpProperties hmdpProperties;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @PostConstruct
+    private void init() {
+        HmdpProperties.Local properties = hmdpProperties.getCache().getLocal();
+        if (!properties.isEnabled()) {
+            return;
+        }
+        //过期的key在读取时或者容量满了时清理
+        cache = CacheUtil.newLRUCache(Math.max(1, properties.getMaxSize()), properties.getTtl().toMillis());
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+    }
+
+    public boolean isEnabled() {
+        return cache != null;
+    }
+
+    /**
+     * key所在分段的当前版本，查询redis之前调用，写入本地缓存时传回
+     */
+    public long version(String key) {
+        return versions.get(stripe(key));
+    }
+
+    private static int stripe(String key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & (VERSION_STRIPES - 1);
+    }
+
+    /**
+     * 查询本地缓存，没有命中返回null，命中空值返回 NULL_VALUE
+     */
+    public Object get(String keyPrefix, String key) {
+        if (cache == null) {
+            return null;
+        }
+        Object value = cache.get(key, false);
+        (value != null ? hits : misses).computeIfAbsent(keyPrefix, k -> new LongAdder()).increment();
+        return value;
+    }
+
+    /**
+     * 写入本地缓存，使用默认的有效期
+     */
+    public void put(String key, Object value, long version) {
+        if (cache != null && version == version(key)) {
+            cache.put(key, value);
+        }
+    }
+
+    /**
+     * 写入本地缓存，有效期不超过timeout(毫秒)，用于逻辑过期的数据
+     */
+    public void put(String key, Object value, long version, long timeout) {
+        if (cache != null && version == version(key)) {
+            cache.put(key, value, Math.min(timeout, hmdpProperties.getCache().getLocal().getTtl().toMillis()));
+        }
+    }
+
+    /**
+     * 只清除本节点的key，收到其它节点的失效通知时调用
+     */
+    public void evict(String key) {
+        if (cache != null) {
+            versions.incrementAndGet(stripe(key));
+            cache.remove(key);
+        }
+    }
+
+    /**
+     * 清除本节点的key并通知其它节点清除
+     */
+    public void invalidate(String key) {
+        if (cache != null) {
+            evict(key);
+            stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        evict(new String(message.getBody(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 取出上次统计以来各key前缀的命中次数、未命中次数和命中率，并清零
+     */
+    public Map<String, String> drainStats() {
+        Set<String> keyPrefixes = new TreeSet<>(hits.keySet());
+        keyPrefixes.addAll(misses.keySet());
+        Map<String, String> stats = new LinkedHashMap<>();
+        for (String keyPrefix : keyPrefixes) {
+            long hit = sumThenReset(hits.get(keyPrefix));
+            long miss = sumThenReset(misses.get(keyPrefix));
+            if (hit + miss > 0) {
+                stats.put(keyPrefix, String.format("hit=%d, miss=%d, ratio=%.2f%%", hit, miss, hit * 100.0 / (hit + miss)));
+            }
+        }
+        return stats;
+    }
+
+    private static long sumThenReset(LongAdder adder) {
+        return adder == null ? 0 : adder.sumThenReset();
+    }
+}
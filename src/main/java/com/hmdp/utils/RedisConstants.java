@@ -11,11 +11,25 @@ public class RedisConstants {
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
     public static final String CACHE_SHOP_TYPE_KEY = "cache:shop:type:";
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final String CACHE_BLOOM_CHANNEL = "cache:bloom";
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_META_KEY = "seckill:meta:";
+    public static final String SECKILL_LEASE_KEY = "seckill:lease:";
+    public static final String SECKILL_LEASE_NODE_KEY = "seckill:lease-node:";
+    public static final String SECKILL_ORDER_STREAM = "stream.orders";
+    public static final String SECKILL_ORDER_GROUP = "g1";
+    public static final String SECKILL_ORDER_DLQ = "stream.orders.dlq";
+    public static final String ORDER_STATUS_KEY = "order:status:";
+    public static final String ORDER_UNPAID_KEY = "order:unpaid";
+    public static final String SECKILL_COMPENSATION_KEY = "seckill:compensation:";
+    public static final String SECKILL_COMPENSATION_STREAM = "stream.orders.compensation";
+    public static final Long SECKILL_COMPENSATION_TTL = 86400L;
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:sold-out";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FOLLOW_KEY = "follows:";
     public static final String FEED_KEY = "feed:";
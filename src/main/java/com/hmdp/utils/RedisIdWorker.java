@@ -1,36 +1,214 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.thread.NamedThreadFactory;
+import com.hmdp.config.HmdpProperties;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * 全局ID生成器：31位秒级时间戳 + 32位当天的序列号。
+ * 序列号按号段从Redis申请(INCRBY icr:{前缀}:{日期} 号段大小)，号段内在本地无锁分配，
+ * 号段快用完时异步预取下一个号段；号段大小小于等于1时每个ID都INCR一次。
+ * hmdp.id.mode=snowflake 时改用 {@link SnowflakeIdWorker} 在本地生成。
+ * redis模式下秒杀订单id由 seckill.lua 在下单成功后直接 INCR 同一个序列号key生成，不经过号段，
+ * 号段分配目前只用于其它调用 nexId 的业务；两者都是原子自增，分配出的序列号不会重复
+ */
+@Slf4j
 @Component
 public class RedisIdWorker {
     //2025年1月1的时间戳，这个是通过主函数里面的代码算出来的
     private static final long BEGIN_TIMESTAMP = 1735689600L;
     //序列号的位数
     private static final long COUNT_BITS = 32;
+    //DateTimeFormatter是线程安全的，不需要每次创建
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+    //号段剩余不到这个比例时预取下一个号段
+    private static final double PREFETCH_RATIO = 0.2;
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private HmdpProperties hmdpProperties;
+
+    @Resource
+    private SnowflakeIdWorker snowflakeIdWorker;
+
+    //业务前缀 -> 当天的号段
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+
+    private final ExecutorService prefetchExecutor =
+            Executors.newSingleThreadExecutor(new NamedThreadFactory("id-segment-", true));
+
+    //最近一次计算的日期，同一天内复用格式化结果
+    private volatile CachedDate cachedDate = new CachedDate(-1, null);
+
+    /**
+     * 号段[cursor, end)，cursor 原子递增分配
+     */
+    private static class Segment {
+        final AtomicLong cursor;
+        final long end;
+        final long size;
+
+        Segment(long start, long end) {
+            this.cursor = new AtomicLong(start);
+            this.end = end;
+            this.size = end - start;
+        }
+    }
+
+    /**
+     * 同一个key的当前号段和预取中的下一个号段
+     */
+    private static class SegmentBuffer {
+        final String key;
+        volatile Segment current = new Segment(0, 0);
+        volatile CompletableFuture<Segment> next;
+
+        SegmentBuffer(String key) {
+            this.key = key;
+        }
+    }
+
+    private static class CachedDate {
+        final long epochDay;
+        final String date;
+
+        CachedDate(long epochDay, String date) {
+            this.epochDay = epochDay;
+            this.date = date;
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        prefetchExecutor.shutdownNow();
+    }
+
     public long nexId(String keyPrefix){
+        //0.雪花算法模式，ID全局唯一，不需要按业务前缀区分
+        if (isSnowflake()) {
+            return snowflakeIdWorker.nextId();
+        }
         //1.生成时间戳
         LocalDateTime now = LocalDateTime.now();
-        long nowSecond = now.toEpochSecond(ZoneOffset.UTC);//获取当前时间戳
-        long timestamp = nowSecond - BEGIN_TIMESTAMP;
+        long timestamp = timestamp(now);
         //2.生成序列号
         //2.1 获取当前日期，精确到天
-        String data = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-        Long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + data);
+        String key = sequenceKey(keyPrefix, now);
+        int segmentSize = hmdpProperties.getId().getSegmentSize();
+        long count;
+        if (segmentSize <= 1) {
+            //2.2 不使用号段，每个ID自增一次
+            count = stringRedisTemplate.opsForValue().increment(key);
+        } else {
+            //2.3 从本地号段中分配
+            count = nextFromSegment(keyPrefix, key, segmentSize);
+        }
         //3.拼接并返回
         return timestamp<<COUNT_BITS | count;//时间戳加redis自增的32位序列号
     }
 
+    public boolean isSnowflake() {
+        return "snowflake".equals(hmdpProperties.getId().getMode());
+    }
+
+    /**
+     * ID的时间戳部分：相对2025年1月1日的秒数
+     */
+    public long timestamp(LocalDateTime now) {
+        long nowSecond = now.toEpochSecond(ZoneOffset.UTC);//获取当前时间戳
+        return nowSecond - BEGIN_TIMESTAMP;
+    }
+
+    /**
+     * 当天的序列号key：icr:{前缀}:{yyyy:MM:dd}，seckill.lua也用它在脚本内生成订单id
+     */
+    public String sequenceKey(String keyPrefix, LocalDateTime now) {
+        return "icr:" + keyPrefix + ":" + formatDate(now);
+    }
+
+    private String formatDate(LocalDateTime now) {
+        long epochDay = now.toLocalDate().toEpochDay();
+        CachedDate cached = cachedDate;
+        if (cached.epochDay != epochDay) {
+            cached = new CachedDate(epochDay, now.format(DATE_FORMATTER));
+            cachedDate = cached;
+        }
+        return cached.date;
+    }
+
+    private long nextFromSegment(String keyPrefix, String key, int segmentSize) {
+        //1.找到当天的号段，跨天后换成新的key
+        SegmentBuffer buffer = buffers.get(keyPrefix);
+        if (buffer == null || !buffer.key.equals(key)) {
+            buffer = buffers.compute(keyPrefix,
+                    (prefix, old) -> old != null && old.key.equals(key) ? old : new SegmentBuffer(key));
+        }
+        while (true) {
+            //2.在当前号段内无锁分配
+            Segment segment = buffer.current;
+            long value = segment.cursor.getAndIncrement();
+            if (value < segment.end) {
+                //2.1 剩余不多时预取下一个号段，只有恰好越过阈值的线程会触发
+                if (segment.end - value == Math.max(1, (long) (segment.size * PREFETCH_RATIO))) {
+                    prefetch(buffer, segmentSize);
+                }
+                return value;
+            }
+            //3.当前号段用完，切换到下一个号段，同一时刻只有一个线程去切换
+            synchronized (buffer) {
+                if (buffer.current != segment) {
+                    continue;
+                }
+                CompletableFuture<Segment> next = buffer.next;
+                buffer.next = null;
+                Segment loaded = null;
+                if (next != null) {
+                    try {
+                        loaded = next.join();
+                    } catch (Exception e) {
+                        log.error("预取ID号段失败, key:{}", key, e);
+                    }
+                }
+                buffer.current = loaded != null ? loaded : loadSegment(key, segmentSize);
+            }
+        }
+    }
+
+    private void prefetch(SegmentBuffer buffer, int segmentSize) {
+        synchronized (buffer) {
+            if (buffer.next == null) {
+                buffer.next = CompletableFuture.supplyAsync(() -> loadSegment(buffer.key, segmentSize), prefetchExecutor);
+            }
+        }
+    }
+
+    /**
+     * 向Redis申请一个号段，INCRBY 返回号段的最后一个序列号
+     */
+    private Segment loadSegment(String key, int segmentSize) {
+        Long end = stringRedisTemplate.opsForValue().increment(key, segmentSize);
+        if (end == null) {
+            throw new IllegalStateException("申请ID号段失败, key:" + key);
+        }
+        return new Segment(end - segmentSize + 1, end + 1);
+    }
+
 /*    public static void main(String[] args) {
         LocalDateTime time = LocalDateTime.now().of(2025, 1, 1, 0, 0, 0);
         long second = time.toEpochSecond(ZoneOffset.UTC);
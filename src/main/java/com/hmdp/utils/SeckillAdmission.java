@@ -0,0 +1,100 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.HmdpProperties;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.task.SeckillPreheatTask;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * 秒杀准入控制：每张券一个本地令牌桶限流，再加上整个秒杀接口的并发上限，
+ * 超出限制的请求在访问Redis之前直接拒绝，避免秒杀流量占满Tomcat线程。
+ * 只给预热过的券创建令牌桶，其他id不访问数据库也不占用内存，由 seckill.lua 拒绝
+ */
+@Component
+public class SeckillAdmission {
+
+    @Resource
+    private HmdpProperties hmdpProperties;
+
+    @Resource
+    private SeckillPreheatTask seckillPreheatTask;
+
+    //预热过的优惠券id -> 令牌桶，不限流的券对应空值
+    private final Map<Long, Optional<TokenBucket>> limiters = new ConcurrentHashMap<>();
+
+    //秒杀接口的全局并发许可，null表示不限制
+    private Semaphore concurrentPermits;
+
+    @PostConstruct
+    private void init() {
+        int maxConcurrent = hmdpProperties.getSeckill().getAdmission().getMaxConcurrent();
+        if (maxConcurrent > 0) {
+            concurrentPermits = new Semaphore(maxConcurrent);
+        }
+    }
+
+    /**
+     * 尝试进入秒杀，成功后必须调用 {@link #exit()}
+     * @return true表示允许进入
+     */
+    public boolean tryEnter(Long voucherId) {
+        //1.全局并发上限，先判断，被拒绝的请求不消耗券的限流令牌
+        if (concurrentPermits != null && !concurrentPermits.tryAcquire()) {
+            return false;
+        }
+        //2.单张券限流，没有拿到令牌时归还并发许可
+        Optional<TokenBucket> limiter = getLimiter(voucherId);
+        if (limiter.isPresent() && !limiter.get().tryAcquire()) {
+            exit();
+            return false;
+        }
+        return true;
+    }
+
+    public void exit() {
+        if (concurrentPermits != null) {
+            concurrentPermits.release();
+        }
+    }
+
+    private Optional<TokenBucket> getLimiter(Long voucherId) {
+        //1.没有预热的券不限流
+        SeckillVoucher voucher = seckillPreheatTask.getVoucher(voucherId);
+        if (voucher == null) {
+            return Optional.empty();
+        }
+        Optional<TokenBucket> limiter = limiters.get(voucherId);
+        if (limiter != null) {
+            return limiter;
+        }
+        //2.创建令牌桶，并发创建时使用先放入的
+        limiter = createLimiter(voucher);
+        Optional<TokenBucket> previous = limiters.putIfAbsent(voucherId, limiter);
+        if (previous != null) {
+            return previous;
+        }
+        //3.新券预热时顺便去掉已经结束、不再预热的券
+        limiters.keySet().removeIf(id -> seckillPreheatTask.getVoucher(id) == null);
+        return limiter;
+    }
+
+    private Optional<TokenBucket> createLimiter(SeckillVoucher voucher) {
+        //1.优先使用新增秒杀券时指定的限流值，没有则使用默认配置
+        Integer rateLimit = voucher.getRateLimit();
+        if (rateLimit == null) {
+            rateLimit = hmdpProperties.getSeckill().getAdmission().getDefaultRateLimit();
+        }
+        if (rateLimit <= 0) {
+            return Optional.empty();
+        }
+        //2.桶容量为一秒的令牌数，允许一秒内的突发
+        return Optional.of(new TokenBucket(rateLimit, rateLimit));
+    }
+}
@@ -0,0 +1,71 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.HmdpProperties;
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Collection;
+import java.util.Collections;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_COMPENSATION_TTL;
+
+/**
+ * 秒杀订单补偿：seckill.lua 已经扣了Redis库存并记录了一人一单，但订单最终没有写入数据库时，
+ * 用 seckill_compensate.lua 原子地归还库存、按需移除一人一单记录、记录下单失败，
+ * 并把补偿写入 stream.orders.compensation。同一个订单只补偿一次，重复投递不会多还库存
+ */
+@Slf4j
+@Component
+public class SeckillOrderCompensation {
+
+    private static final DefaultRedisScript<Long> COMPENSATE_SCRIPT;
+    static {
+        COMPENSATE_SCRIPT = new DefaultRedisScript<>();
+        COMPENSATE_SCRIPT.setLocation(new ClassPathResource("seckill_compensate.lua"));
+        COMPENSATE_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private HmdpProperties hmdpProperties;
+
+    @Resource
+    private SeckillSoldOutRegistry soldOutRegistry;
+
+    @Resource
+    private SeckillOrderStatus orderStatus;
+
+    /**
+     * 补偿没有创建成功的订单
+     * @param removeBuyer 是否移除一人一单记录，用户已经有其它订单(重复下单)时传false，只归还库存
+     */
+    public void compensate(Collection<VoucherOrder> voucherOrders, boolean removeBuyer, String reason) {
+        String statusTtl = String.valueOf(hmdpProperties.getSeckill().getOrder().getStatusTtl().getSeconds());
+        String compensationMaxLen = String.valueOf(hmdpProperties.getSeckill().getOrder().getRecovery().getCompensationMaxLen());
+        for (VoucherOrder order : voucherOrders) {
+            try {
+                Long result = stringRedisTemplate.execute(COMPENSATE_SCRIPT, Collections.emptyList(),
+                        order.getVoucherId().toString(), order.getUserId().toString(), order.getId().toString(),
+                        removeBuyer ? "1" : "0", reason, statusTtl, SECKILL_COMPENSATION_TTL.toString(),
+                        compensationMaxLen);
+                if (result != null && result == 1) {
+                    //库存回到了Redis，清除各节点的售罄标记
+                    soldOutRegistry.clear(order.getVoucherId());
+                    log.warn("订单补偿完成, orderId:{}, voucherId:{}, userId:{}, 原因:{}",
+                            order.getId(), order.getVoucherId(), order.getUserId(), reason);
+                }
+            } catch (Exception e) {
+                //补偿失败时至少让客户端知道下单失败，库存差异由对账修复
+                log.error("订单补偿失败, orderId:{}, voucherId:{}", order.getId(), order.getVoucherId(), e);
+                orderStatus.failed(order.getId(), order.getUserId(), reason);
+            }
+        }
+    }
+}
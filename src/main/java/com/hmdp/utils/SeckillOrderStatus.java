@@ -0,0 +1,111 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.config.HmdpProperties;
+import com.hmdp.dto.OrderStatusDTO;
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.function.Function;
+
+import static com.hmdp.utils.RedisConstants.ORDER_STATUS_KEY;
+
+/**
+ * 秒杀订单的处理结果，保存在 order:status:{订单id} 中，值为 状态|用户id[|失败原因]：
+ * seckill.lua 下单成功时写入排队中(0)，订单消费者处理完后改为下单成功(1)或下单失败(2)，
+ * 客户端轮询订单结果时只读Redis，过期后才查询数据库
+ */
+@Slf4j
+@Component
+public class SeckillOrderStatus {
+
+    public static final String PENDING = "0";
+    public static final String CREATED = "1";
+    public static final String FAILED = "2";
+    //超时未支付被取消的订单，状态为下单失败
+    public static final String CANCELLED_REASON = "订单已取消";
+    private static final String[] STATUS_NAMES = {"pending", "created", "failed"};
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private HmdpProperties hmdpProperties;
+
+    /**
+     * 订单已经写入数据库，一次管道写入全部订单的状态
+     */
+    public void created(Collection<VoucherOrder> voucherOrders) {
+        write(voucherOrders, order -> CREATED + "|" + order.getUserId());
+    }
+
+    /**
+     * 超时未支付的订单已经取消，一次管道把全部订单的状态改为下单失败
+     */
+    public void cancelled(Collection<VoucherOrder> voucherOrders) {
+        write(voucherOrders, order -> FAILED + "|" + order.getUserId() + "|" + CANCELLED_REASON);
+    }
+
+    private void write(Collection<VoucherOrder> voucherOrders, Function<VoucherOrder, String> value) {
+        if (voucherOrders.isEmpty()) {
+            return;
+        }
+        Expiration expiration = Expiration.from(hmdpProperties.getSeckill().getOrder().getStatusTtl());
+        try {
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (VoucherOrder order : voucherOrders) {
+                    connection.stringCommands().set(
+                            (ORDER_STATUS_KEY + order.getId()).getBytes(StandardCharsets.UTF_8),
+                            value.apply(order).getBytes(StandardCharsets.UTF_8),
+                            expiration, RedisStringCommands.SetOption.upsert());
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            //状态只影响轮询，写失败时客户端会在状态过期后查询数据库
+            log.warn("写入订单状态失败, count:{}", voucherOrders.size(), e);
+        }
+    }
+
+    /**
+     * 订单没有创建成功
+     */
+    public void failed(Long orderId, Long userId, String reason) {
+        try {
+            stringRedisTemplate.opsForValue().set(ORDER_STATUS_KEY + orderId,
+                    FAILED + "|" + userId + "|" + reason, hmdpProperties.getSeckill().getOrder().getStatusTtl());
+        } catch (Exception e) {
+            log.warn("写入订单状态失败, orderId:{}", orderId, e);
+        }
+    }
+
+    /**
+     * 查询订单状态，Redis中没有或者不属于这个用户时返回null
+     */
+    public OrderStatusDTO get(Long orderId, Long userId) {
+        String value = stringRedisTemplate.opsForValue().get(ORDER_STATUS_KEY + orderId);
+        if (StrUtil.isBlank(value)) {
+            return null;
+        }
+        //状态|用户id[|失败原因]
+        String[] parts = value.split("\\|", 3);
+        if (parts.length < 2 || !parts[1].equals(userId.toString())) {
+            return null;
+        }
+        OrderStatusDTO status = new OrderStatusDTO();
+        status.setOrderId(orderId);
+        status.setStatus(STATUS_NAMES[Integer.parseInt(parts[0])]);
+        if (parts.length > 2) {
+            status.setReason(parts[2]);
+        }
+        return status;
+    }
+}
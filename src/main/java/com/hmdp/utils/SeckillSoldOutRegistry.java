@@ -0,0 +1,98 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.HmdpProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
+/**
+ * 本地售罄标记：秒杀券卖完后，后续请求直接在JVM内拒绝，不再访问Redis。
+ * 标记通过 Redis 发布订阅同步到所有节点，消息格式：+券id 表示售罄，-券id 表示补货清除。
+ * 售罄消息可能晚于补货的清除消息到达，标记超过有效期后失效，下一个请求重新到Redis判断，仍然售罄时再次标记
+ */
+@Slf4j
+@Component
+public class SeckillSoldOutRegistry implements MessageListener {
+
+    //券id -> 本节点标记售罄的时间
+    private final Map<Long, Long> soldOutVouchers = new ConcurrentHashMap<>();
+
+    @Resource
+    private HmdpProperties hmdpProperties;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+    }
+
+    /**
+     * 是否已售罄
+     */
+    public boolean isSoldOut(Long voucherId) {
+        Long markedAt = soldOutVouchers.get(voucherId);
+        if (markedAt == null) {
+            return false;
+        }
+        if (isExpired(markedAt)) {
+            //标记过期，移除后重新到Redis判断
+            soldOutVouchers.remove(voucherId, markedAt);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 标记售罄，本节点没有标记或者标记已经过期时才广播给其它节点
+     */
+    public void markSoldOut(Long voucherId) {
+        Long previous = soldOutVouchers.put(voucherId, System.currentTimeMillis());
+        if (previous == null || isExpired(previous)) {
+            stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, "+" + voucherId);
+        }
+    }
+
+    private boolean isExpired(long markedAt) {
+        return System.currentTimeMillis() - markedAt > hmdpProperties.getSeckill().getSoldOutTtl().toMillis();
+    }
+
+    /**
+     * 补货后清除售罄标记，并通知所有节点
+     */
+    public void clear(Long voucherId) {
+        soldOutVouchers.remove(voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, "-" + voucherId);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        try {
+            Long voucherId = Long.valueOf(body.substring(1));
+            if (body.charAt(0) == '+') {
+                soldOutVouchers.put(voucherId, System.currentTimeMillis());
+            } else {
+                soldOutVouchers.remove(voucherId);
+            }
+        } catch (RuntimeException e) {
+            log.error("无法解析售罄消息:{}", body, e);
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.NamedThreadFactory;
+import cn.hutool.core.util.BooleanUtil;
+import com.hmdp.config.HmdpProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_LEASE_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_LEASE_NODE_KEY;
+
+/**
+ * 秒杀库存租约：节点一次从 seckill:stock:{id} 租出一批库存，之后在本地无锁扣减，
+ * 只有本地库存用完时才再访问Redis租下一批。一人一单仍然由 seckill.lua 在Redis中判断。
+ * 长时间没有卖出的租约和节点关闭时剩余的租约会归还给Redis。
+ * 节点定期续期心跳key，崩溃的节点心跳过期后由其它节点回收它的租约，节点启动时也会回收自己上次留下的租约；
+ * 租约被回收后 seckill.lua 不再接受这个节点的租约库存，不会重复售卖
+ */
+@Slf4j
+@Component
+public class SeckillStockLease {
+
+    private static final DefaultRedisScript<Long> LEASE_SCRIPT;
+    private static final DefaultRedisScript<Long> RETURN_SCRIPT;
+    private static final DefaultRedisScript<Long> RECLAIM_SCRIPT;
+    static {
+        LEASE_SCRIPT = new DefaultRedisScript<>();
+        LEASE_SCRIPT.setLocation(new ClassPathResource("seckill_lease.lua"));
+        LEASE_SCRIPT.setResultType(Long.class);
+        RETURN_SCRIPT = new DefaultRedisScript<>();
+        RETURN_SCRIPT.setLocation(new ClassPathResource("seckill_lease_return.lua"));
+        RETURN_SCRIPT.setResultType(Long.class);
+        RECLAIM_SCRIPT = new DefaultRedisScript<>();
+        RECLAIM_SCRIPT.setLocation(new ClassPathResource("seckill_lease_reclaim.lua"));
+        RECLAIM_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private HmdpProperties hmdpProperties;
+
+    @Resource
+    private SeckillSoldOutRegistry soldOutRegistry;
+
+    //优惠券id -> 本地租约
+    private final Map<Long, Lease> leases = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService returnExecutor;
+
+    private static class Lease {
+        //本地剩余库存
+        final AtomicInteger remaining = new AtomicInteger();
+        //最近一次从本地租约扣减库存的时间
+        volatile long lastUsedMillis = System.currentTimeMillis();
+    }
+
+    @PostConstruct
+    private void init() {
+        HmdpProperties.StockLease properties = hmdpProperties.getSeckill().getStockLease();
+        if (!properties.isEnabled()) {
+            return;
+        }
+        //1.写入心跳，回收本节点上次运行(崩溃前)留下的租约
+        heartbeat();
+        reclaimLeases(true);
+        //2.定期归还长时间没有卖出的租约
+        long period = Math.max(1000, properties.getIdleTimeout().toMillis() / 2);
+        returnExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("seckill-lease-", true));
+        returnExecutor.scheduleWithFixedDelay(this::returnIdleLeases, period, period, TimeUnit.MILLISECONDS);
+        //3.定期续期心跳，回收失联节点的租约
+        long heartbeatPeriod = Math.max(1000, properties.getNodeTtl().toMillis() / 3);
+        returnExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                heartbeat();
+                reclaimLeases(false);
+            } catch (Exception e) {
+                log.error("库存租约心跳失败", e);
+            }
+        }, heartbeatPeriod, heartbeatPeriod, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (returnExecutor == null) {
+            return;
+        }
+        returnExecutor.shutdownNow();
+        //节点关闭，归还全部租约
+        leases.keySet().forEach(this::returnLease);
+        stringRedisTemplate.delete(SECKILL_LEASE_NODE_KEY + hmdpProperties.getNodeId());
+    }
+
+    public boolean isEnabled() {
+        return hmdpProperties.getSeckill().getStockLease().isEnabled();
+    }
+
+    /**
+     * 从本地租约中扣减一个库存，本地不足时向Redis租用下一批
+     * @return true表示拿到了库存
+     */
+    public boolean tryAcquire(Long voucherId) {
+        Lease lease = leases.computeIfAbsent(voucherId, id -> new Lease());
+        //1.先尝试本地扣减
+        if (decrement(lease)) {
+            return true;
+        }
+        //2.本地没有库存，已知售罄就不再访问Redis
+        if (soldOutRegistry.isSoldOut(voucherId)) {
+            return false;
+        }
+        //3.向Redis租用一批库存，同一张券同一时刻只有一个线程去租
+        synchronized (lease) {
+            if (decrement(lease)) {
+                return true;
+            }
+            int chunk = hmdpProperties.getSeckill().getStockLease().getChunkSize();
+            Long got = stringRedisTemplate.execute(
+                    LEASE_SCRIPT,
+                    Collections.emptyList(),
+                    voucherId.toString(), String.valueOf(chunk), hmdpProperties.getNodeId()
+            );
+            if (got == null || got <= 0) {
+                //Redis中也没有库存了，标记售罄
+                soldOutRegistry.markSoldOut(voucherId);
+                return false;
+            }
+            //4.自己用掉一个，剩余的留在本地
+            lease.remaining.addAndGet(got.intValue() - 1);
+            lease.lastUsedMillis = System.currentTimeMillis();
+            return true;
+        }
+    }
+
+    /**
+     * 拿到库存后没有下单成功(比如重复下单)，把库存还给本地租约
+     */
+    public void release(Long voucherId) {
+        Lease lease = leases.get(voucherId);
+        if (lease != null) {
+            lease.remaining.incrementAndGet();
+        }
+    }
+
+    /**
+     * 本节点的租约已经被回收，丢弃本地剩余的租约库存，下次从Redis重新租用
+     */
+    public void discard(Long voucherId) {
+        Lease lease = leases.get(voucherId);
+        if (lease != null) {
+            lease.remaining.set(0);
+        }
+    }
+
+    /**
+     * 续期本节点的心跳，心跳已经过期时租约可能被其它节点回收了，丢弃本地租约并回收自己剩余的部分
+     */
+    private void heartbeat() {
+        String key = SECKILL_LEASE_NODE_KEY + hmdpProperties.getNodeId();
+        long ttl = hmdpProperties.getSeckill().getStockLease().getNodeTtl().toMillis();
+        if (BooleanUtil.isTrue(stringRedisTemplate.expire(key, ttl, TimeUnit.MILLISECONDS))) {
+            return;
+        }
+        if (!leases.isEmpty()) {
+            log.warn("库存租约心跳已经过期，丢弃本地租约, node:{}", hmdpProperties.getNodeId());
+            leases.values().forEach(lease -> lease.remaining.set(0));
+            reclaimLeases(true);
+        }
+        stringRedisTemplate.opsForValue().set(key, "1", ttl, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 扫描所有 seckill:lease:{券id}，回收心跳已经过期的节点持有的租约
+     * @param own true表示回收本节点的租约，false表示回收其它失联节点的租约
+     */
+    private void reclaimLeases(boolean own) {
+        String nodeId = hmdpProperties.getNodeId();
+        List<String> leaseKeys = stringRedisTemplate.execute((RedisCallback<List<String>>) connection -> {
+            List<String> keys = new ArrayList<>();
+            ScanOptions options = ScanOptions.scanOptions().match(SECKILL_LEASE_KEY + "*").count(1000).build();
+            try (Cursor<byte[]> cursor = connection.scan(options)) {
+                cursor.forEachRemaining(key -> keys.add(new String(key, StandardCharsets.UTF_8)));
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return keys;
+        });
+        if (leaseKeys == null) {
+            return;
+        }
+        for (String leaseKey : leaseKeys) {
+            String voucherId = leaseKey.substring(SECKILL_LEASE_KEY.length());
+            Set<Object> holders = own ? Collections.singleton(nodeId) : stringRedisTemplate.opsForHash().keys(leaseKey);
+            for (Object holder : holders) {
+                if (!own && nodeId.equals(holder)) {
+                    continue;
+                }
+                Long count = stringRedisTemplate.execute(
+                        RECLAIM_SCRIPT,
+                        Collections.emptyList(),
+                        voucherId, holder.toString(), own ? "1" : "0"
+                );
+                if (count != null && count > 0) {
+                    log.warn("回收库存租约, voucherId:{}, node:{}, count:{}", voucherId, holder, count);
+                    soldOutRegistry.clear(Long.valueOf(voucherId));
+                }
+            }
+        }
+    }
+
+    private boolean decrement(Lease lease) {
+        while (true) {
+            int remaining = lease.remaining.get();
+            if (remaining <= 0) {
+                return false;
+            }
+            if (lease.remaining.compareAndSet(remaining, remaining - 1)) {
+                lease.lastUsedMillis = System.currentTimeMillis();
+                return true;
+            }
+        }
+    }
+
+    private void returnIdleLeases() {
+        long idleTimeout = hmdpProperties.getSeckill().getStockLease().getIdleTimeout().toMillis();
+        long now = System.currentTimeMillis();
+        for (Map.Entry<Long, Lease> entry : leases.entrySet()) {
+            if (now - entry.getValue().lastUsedMillis >= idleTimeout) {
+                returnLease(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * 把本地剩余的库存归还给Redis
+     */
+    private void returnLease(Long voucherId) {
+        Lease lease = leases.get(voucherId);
+        int count = lease == null ? 0 : lease.remaining.getAndSet(0);
+        if (count <= 0) {
+            return;
+        }
+        try {
+            stringRedisTemplate.execute(
+                    RETURN_SCRIPT,
+                    Collections.emptyList(),
+                    voucherId.toString(), String.valueOf(count), hmdpProperties.getNodeId()
+            );
+            //库存回到了Redis，其它节点可以继续售卖
+            soldOutRegistry.clear(voucherId);
+        } catch (Exception e) {
+            //归还失败，库存放回本地，下次再试
+            lease.remaining.addAndGet(count);
+            log.error("归还库存租约失败, voucherId:{}, count:{}", voucherId, count, e);
+        }
+    }
+}
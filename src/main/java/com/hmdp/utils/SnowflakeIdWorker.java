@@ -0,0 +1,197 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.thread.NamedThreadFactory;
+import com.hmdp.config.HmdpProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 雪花算法ID生成器，生成ID时不访问Redis：
+ * 31位秒级时间戳 + 10位workerId + 10位秒内毫秒 + 12位毫秒内序列号。
+ * 高31位与 RedisIdWorker 的时间戳一致，ID仍然按时间递增。
+ * workerId(1~1023)启动时从Redis租用 id:worker:{workerId}，后台定期续租，
+ * Redis短暂不可用时只要租约没有过期就可以继续生成ID
+ */
+@Slf4j
+@Component
+public class SnowflakeIdWorker {
+    //2025年1月1的时间戳(毫秒)，与RedisIdWorker一致
+    private static final long BEGIN_MILLIS = 1735689600000L;
+    private static final long WORKER_ID_BITS = 10;
+    private static final long MILLIS_BITS = 10;
+    private static final long SEQUENCE_BITS = 12;
+    private static final long MAX_WORKER_ID = (1 << WORKER_ID_BITS) - 1;
+    private static final long MAX_SEQUENCE = (1 << SEQUENCE_BITS) - 1;
+    //与RedisIdWorker一样使用本地时间作为时间戳，启动时计算一次时区偏移
+    private static final long ZONE_OFFSET_MILLIS =
+            ZoneId.systemDefault().getRules().getOffset(Instant.now()).getTotalSeconds() * 1000L;
+
+    private static final DefaultRedisScript<Long> LEASE_SCRIPT;
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT;
+    static {
+        LEASE_SCRIPT = new DefaultRedisScript<>();
+        LEASE_SCRIPT.setLocation(new ClassPathResource("id_worker_lease.lua"));
+        LEASE_SCRIPT.setResultType(Long.class);
+        RELEASE_SCRIPT = new DefaultRedisScript<>();
+        RELEASE_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        RELEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private HmdpProperties hmdpProperties;
+
+    //租约持有者标识，节点重启后是新的持有者
+    private String owner;
+
+    private volatile long workerId = -1;
+
+    //本地记录的租约过期时间，超过后不能再用这个workerId生成ID
+    private volatile long leaseExpireAt;
+
+    //高位是上一个ID的毫秒数(相对BEGIN_MILLIS)，低12位是序列号
+    private final AtomicLong state = new AtomicLong();
+
+    //最近一次打印时钟回拨日志的时间，避免回拨期间刷屏
+    private volatile long rollbackLoggedAt;
+
+    private ScheduledExecutorService heartbeatExecutor;
+
+    @PostConstruct
+    private void init() {
+        owner = hmdpProperties.getNodeId() + ":" + UUID.randomUUID().toString(true);
+        if ("snowflake".equals(hmdpProperties.getId().getMode())) {
+            //启动时就租好workerId，租不到直接启动失败
+            ensureLeased();
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (heartbeatExecutor == null) {
+            return;
+        }
+        heartbeatExecutor.shutdownNow();
+        try {
+            stringRedisTemplate.execute(RELEASE_SCRIPT,
+                    Collections.singletonList("id:worker:" + workerId), owner);
+        } catch (Exception e) {
+            log.warn("释放workerId失败, workerId:{}", workerId, e);
+        }
+    }
+
+    public long nextId() {
+        long worker = workerId;
+        if (worker < 0) {
+            worker = ensureLeased();
+        }
+        long maxBackward = hmdpProperties.getId().getMaxClockBackward().toMillis();
+        while (true) {
+            //先读状态再读时钟，否则读完时钟后被其它线程抢先推进了状态，会被误判为时钟回拨
+            long current = state.get();
+            long wallMillis = System.currentTimeMillis();
+            //1.租约已经过期，workerId可能已经被其它节点租走
+            if (wallMillis >= leaseExpireAt) {
+                throw new IllegalStateException("workerId租约已过期, workerId:" + worker);
+            }
+            long now = wallMillis + ZONE_OFFSET_MILLIS - BEGIN_MILLIS;
+            long last = current >>> SEQUENCE_BITS;
+            long next;
+            if (now > last) {
+                //2.进入新的毫秒，序列号从0开始
+                next = now << SEQUENCE_BITS;
+            } else {
+                //3.同一毫秒或者时钟回拨，沿用上一个ID的毫秒数继续分配，保证ID不重复
+                if (last - now > maxBackward) {
+                    throw new IllegalStateException("时钟回拨" + (last - now) + "ms，超过允许的范围");
+                }
+                if (now < last && wallMillis - rollbackLoggedAt > 1000) {
+                    rollbackLoggedAt = wallMillis;
+                    log.warn("检测到时钟回拨, 回拨:{}ms, workerId:{}", last - now, worker);
+                }
+                if ((current & MAX_SEQUENCE) < MAX_SEQUENCE) {
+                    next = current + 1;
+                } else if (now < last) {
+                    //3.1 回拨期间序列号用完，借用下一毫秒，借用不会超过允许的回拨范围
+                    next = (last + 1) << SEQUENCE_BITS;
+                } else {
+                    //3.2 这一毫秒的序列号用完，自旋等待下一毫秒
+                    continue;
+                }
+            }
+            if (state.compareAndSet(current, next)) {
+                long millis = next >>> SEQUENCE_BITS;
+                return (millis / 1000) << (WORKER_ID_BITS + MILLIS_BITS + SEQUENCE_BITS)
+                        | worker << (MILLIS_BITS + SEQUENCE_BITS)
+                        | (millis % 1000) << SEQUENCE_BITS
+                        | (next & MAX_SEQUENCE);
+            }
+        }
+    }
+
+    private synchronized long ensureLeased() {
+        if (workerId >= 0) {
+            return workerId;
+        }
+        long ttl = hmdpProperties.getId().getWorkerLeaseTtl().toMillis();
+        //1.从节点标识的hash值开始找一个没有被租用的workerId
+        long start = Math.floorMod(hmdpProperties.getNodeId().hashCode(), MAX_WORKER_ID);
+        for (int i = 0; i < MAX_WORKER_ID; i++) {
+            long id = (start + i) % MAX_WORKER_ID + 1;
+            if (lease(id, ttl)) {
+                workerId = id;
+                log.info("租用workerId成功, workerId:{}", id);
+                //2.定期续租
+                heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("id-worker-", true));
+                heartbeatExecutor.scheduleWithFixedDelay(this::renew, ttl / 3, ttl / 3, TimeUnit.MILLISECONDS);
+                return id;
+            }
+        }
+        throw new IllegalStateException("没有可用的workerId");
+    }
+
+    private synchronized void renew() {
+        try {
+            long ttl = hmdpProperties.getId().getWorkerLeaseTtl().toMillis();
+            if (!lease(workerId, ttl)) {
+                //租约过期后被其它节点租走了，本节点不能再使用这个workerId，下次生成ID时重新租用
+                log.error("workerId已被其它节点租用, workerId:{}", workerId);
+                leaseExpireAt = 0;
+                workerId = -1;
+                heartbeatExecutor.shutdown();
+            }
+        } catch (Exception e) {
+            //Redis不可用，租约没过期之前仍然可以继续生成ID
+            log.warn("续租workerId失败, workerId:{}", workerId, e);
+        }
+    }
+
+    private boolean lease(long id, long ttl) {
+        long begin = System.currentTimeMillis();
+        Long result = stringRedisTemplate.execute(LEASE_SCRIPT, Collections.emptyList(),
+                String.valueOf(id), owner, String.valueOf(ttl));
+        if (result == null || result != 1) {
+            return false;
+        }
+        //以发起请求的时间计算过期时间，本地看到的过期时间一定不晚于Redis中的
+        leaseExpireAt = begin + ttl;
+        return true;
+    }
+}
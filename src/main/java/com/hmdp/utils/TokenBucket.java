@@ -0,0 +1,45 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 无锁令牌桶，按GCRA算法实现：只记录下一个令牌的理论到达时间，CAS更新，不需要定时补充令牌
+ */
+public class TokenBucket {
+
+    //生成一个令牌的间隔(纳秒)
+    private final long intervalNanos;
+    //桶容量对应的时间，允许的最大突发量为 capacity 个请求
+    private final long burstNanos;
+    //下一个令牌的理论到达时间
+    private final AtomicLong theoreticalArrival = new AtomicLong(System.nanoTime());
+
+    /**
+     * @param permitsPerSecond 每秒生成的令牌数
+     * @param capacity 桶容量
+     */
+    public TokenBucket(int permitsPerSecond, int capacity) {
+        this.intervalNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, permitsPerSecond);
+        this.burstNanos = intervalNanos * Math.max(1, capacity);
+    }
+
+    /**
+     * 尝试获取一个令牌
+     * @return true表示获取成功
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            long now = System.nanoTime();
+            long tat = theoreticalArrival.get();
+            long next = Math.max(tat, now) + intervalNanos;
+            if (next - now > burstNanos) {
+                //桶里没有令牌了
+                return false;
+            }
+            if (theoreticalArrival.compareAndSet(tat, next)) {
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.HmdpProperties;
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static com.hmdp.utils.RedisConstants.ORDER_UNPAID_KEY;
+
+/**
+ * 未支付订单的延迟队列：ZSET order:unpaid，member为订单id，score为支付截止时间。
+ * 截止时间 = 订单id的高位(下单时间，相对2025-01-01的秒数) + 支付期限，
+ * 同一个订单重复写入时score不变，不会因为消息重复投递而推迟取消
+ */
+@Slf4j
+@Component
+public class UnpaidOrderQueue {
+
+    //取出后多久没有处理完会被重新取出(秒)
+    private static final long RETRY_SECONDS = 60;
+
+    private static final DefaultRedisScript<List> POLL_SCRIPT;
+    static {
+        POLL_SCRIPT = new DefaultRedisScript<>();
+        POLL_SCRIPT.setLocation(new ClassPathResource("order_unpaid_poll.lua"));
+        POLL_SCRIPT.setResultType(List.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private HmdpProperties hmdpProperties;
+
+    @Resource
+    private RedisIdWorker redisIdWorker;
+
+    /**
+     * 新创建的订单加入延迟队列，一次ZADD写入全部订单
+     */
+    public void add(Collection<VoucherOrder> voucherOrders) {
+        HmdpProperties.Cancel properties = hmdpProperties.getSeckill().getOrder().getCancel();
+        if (!properties.isEnabled() || voucherOrders.isEmpty()) {
+            return;
+        }
+        long timeout = properties.getPayTimeout().getSeconds();
+        Set<ZSetOperations.TypedTuple<String>> tuples = new HashSet<>(voucherOrders.size() * 2);
+        for (VoucherOrder order : voucherOrders) {
+            tuples.add(new DefaultTypedTuple<>(order.getId().toString(), (double) ((order.getId() >>> 32) + timeout)));
+        }
+        try {
+            stringRedisTemplate.opsForZSet().add(ORDER_UNPAID_KEY, tuples);
+        } catch (Exception e) {
+            //没有进入队列的订单不会被自动取消，但不影响下单
+            log.error("未支付订单加入延迟队列失败, count:{}", voucherOrders.size(), e);
+        }
+    }
+
+    /**
+     * 取出最多count个已经到期的订单id，取出的订单在处理完之前不会被其它节点取到
+     */
+    @SuppressWarnings("unchecked")
+    public List<String> poll(int count) {
+        long now = redisIdWorker.timestamp(LocalDateTime.now());
+        List<String> ids = stringRedisTemplate.execute(POLL_SCRIPT, Collections.emptyList(),
+                String.valueOf(now), String.valueOf(count), String.valueOf(now + RETRY_SECONDS));
+        return ids == null ? Collections.emptyList() : ids;
+    }
+
+    /**
+     * 处理完的订单移出队列
+     */
+    public void remove(Collection<String> orderIds) {
+        if (!orderIds.isEmpty()) {
+            stringRedisTemplate.opsForZSet().remove(ORDER_UNPAID_KEY, orderIds.toArray());
+        }
+    }
+}
@@ -88,6 +88,9 @@ DROP TABLE IF EXISTS `tb_seckill_voucher`;
 CREATE TABLE `tb_seckill_voucher`  (
   `voucher_id` bigint(20) UNSIGNED NOT NULL COMMENT '关联的优惠券的id',
   `stock` int(8) NOT NULL COMMENT '库存',
+  `rate_limit` int(8) NULL DEFAULT NULL COMMENT '单节点每秒允许进入秒杀的请求数，为空使用默认配置',
+  `dedup_mode` tinyint(1) UNSIGNED NOT NULL DEFAULT 0 COMMENT '一人一单记录方式 0:Set 1:Bitmap',
+  `stock_shards` int(4) UNSIGNED NOT NULL DEFAULT 1 COMMENT '库存分片数，redis数据丢失后按这个分片数预热',
   `create_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
   `begin_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '生效时间',
   `end_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '失效时间',
@@ -95,6 +98,17 @@ CREATE TABLE `tb_seckill_voucher`  (
   PRIMARY KEY (`voucher_id`) USING BTREE
 ) ENGINE = InnoDB CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci COMMENT = '秒杀优惠券表，与优惠券是一对一关系' ROW_FORMAT = Compact;
 
+-- ----------------------------
+-- Upgrade of tb_seckill_voucher
+-- ----------------------------
+-- 已有的数据库按需执行下面的语句，按本文件新建的数据库不需要
+-- 单张券的限流值
+-- ALTER TABLE `tb_seckill_voucher` ADD COLUMN `rate_limit` int(8) NULL DEFAULT NULL COMMENT '单节点每秒允许进入秒杀的请求数，为空使用默认配置' AFTER `stock`;
+-- 一人一单记录方式
+-- ALTER TABLE `tb_seckill_voucher` ADD COLUMN `dedup_mode` tinyint(1) UNSIGNED NOT NULL DEFAULT 0 COMMENT '一人一单记录方式 0:Set 1:Bitmap' AFTER `rate_limit`;
+-- 库存分片数
+-- ALTER TABLE `tb_seckill_voucher` ADD COLUMN `stock_shards` int(4) UNSIGNED NOT NULL DEFAULT 1 COMMENT '库存分片数，redis数据丢失后按这个分片数预热' AFTER `dedup_mode`;
+
 -- ----------------------------
 -- Records of tb_seckill_voucher
 -- ----------------------------
@@ -1274,9 +1288,24 @@ CREATE TABLE `tb_voucher_order`  (
   `use_time` timestamp NULL DEFAULT NULL COMMENT '核销时间',
   `refund_time` timestamp NULL DEFAULT NULL COMMENT '退款时间',
   `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
-  PRIMARY KEY (`id`) USING BTREE
+  `active` tinyint(1) UNSIGNED GENERATED ALWAYS AS (IF(`status` = 4, NULL, 1)) STORED COMMENT '未取消的订单为1，已取消为NULL，已取消的订单不占用一人一单的唯一索引',
+  PRIMARY KEY (`id`) USING BTREE,
+  UNIQUE INDEX `uk_user_voucher`(`user_id`, `voucher_id`, `active`) USING BTREE,
+  INDEX `idx_voucher_status`(`voucher_id`, `status`) USING BTREE
 ) ENGINE = InnoDB CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
 
+-- ----------------------------
+-- Upgrade of tb_voucher_order
+-- ----------------------------
+-- 已有的数据库按需执行下面的语句，按本文件新建的数据库不需要
+-- 一人一单唯一索引，已取消的订单 active 为NULL不占用索引。
+-- 先用下面的查询确认没有重复的未取消订单，有重复时先处理掉，否则加索引会失败
+-- SELECT `user_id`, `voucher_id`, COUNT(*) FROM `tb_voucher_order` WHERE `status` <> 4 GROUP BY `user_id`, `voucher_id` HAVING COUNT(*) > 1;
+-- ALTER TABLE `tb_voucher_order` ADD COLUMN `active` tinyint(1) UNSIGNED GENERATED ALWAYS AS (IF(`status` = 4, NULL, 1)) STORED COMMENT '未取消的订单为1，已取消为NULL，已取消的订单不占用一人一单的唯一索引',
+--   ADD UNIQUE INDEX `uk_user_voucher`(`user_id`, `voucher_id`, `active`) USING BTREE;
+-- 按券和状态统计订单数，库存对账使用
+-- ALTER TABLE `tb_voucher_order` ADD INDEX `idx_voucher_status`(`voucher_id`, `status`) USING BTREE;
+
 -- ----------------------------
 -- Records of tb_voucher_order
 -- ----------------------------
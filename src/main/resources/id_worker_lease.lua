@@ -0,0 +1,26 @@
+--租用或续租雪花算法的workerId
+--1.参数列表
+--1.1.workerId
+local workerId = ARGV[1]
+--1.2.租约持有者标识
+local owner = ARGV[2]
+--1.3.租约有效期(毫秒)
+local ttl = ARGV[3]
+
+--2.数据key
+local workerKey = 'id:worker:' .. workerId
+
+--3.脚本业务
+local holder = redis.call('get', workerKey)
+if(holder == false) then
+    --3.1.没有被租用，租下来，返回1
+    redis.call('set', workerKey, owner, 'px', ttl)
+    return 1
+end
+if(holder == owner) then
+    --3.2.自己持有的租约，续期，返回1
+    redis.call('pexpire', workerKey, ttl)
+    return 1
+end
+--3.3.被其它节点租用，返回0
+return 0
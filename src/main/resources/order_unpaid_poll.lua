@@ -0,0 +1,19 @@
+--取出到期的未支付订单，同时把它们的到期时间推迟到retryAt：
+--多个节点同时扫描时不会取到同一批订单，取走的节点宕机后这批订单到retryAt会被重新取出
+--1.参数列表
+--1.1.当前时间(与订单id高位相同的秒数)
+local now = ARGV[1]
+--1.2.最多取出的订单数
+local count = ARGV[2]
+--1.3.处理失败时重新取出的时间
+local retryAt = ARGV[3]
+
+--2.数据key
+local unpaidKey = 'order:unpaid'
+
+--3.脚本业务
+local ids = redis.call('zrangebyscore', unpaidKey, '-inf', now, 'limit', 0, count)
+for _, id in ipairs(ids) do
+    redis.call('zadd', unpaidKey, retryAt, id)
+end
+return ids
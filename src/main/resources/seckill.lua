@@ -3,31 +3,113 @@
 local voucherId = ARGV[1]
 --1.2.用户id
 local userId = ARGV[2]
---1.3 订单id
+--1.3 订单id，为空时在下单成功后由脚本生成
 local orderId = ARGV[3]
+--1.4 库存租约持有节点，非空表示库存已经在节点本地扣减过
+local leaseHolder = ARGV[4]
+--1.5 生成订单id用的时间戳(相对2025-01-01的秒数)和序列号key icr:order:{yyyy:MM:dd}
+local idTimestamp = tonumber(ARGV[5])
+local idKey = ARGV[6]
+--1.6 订单处理结果的有效期(秒)
+local statusTtl = ARGV[7]
 
 --2.数据key
 --2.1.库存key
 local stockKey = 'seckill:stock:' .. voucherId
---2.2.订单key
+--2.2.订单key，记录已经下单的用户，Set或者按用户id索引的Bitmap
 local orderKey = 'seckill:order:' .. voucherId
+--2.3.秒杀券元数据key，shards表示库存分片数，dedup为1表示订单key是Bitmap
+local metaKey = 'seckill:meta:' .. voucherId
+--2.4.库存租约key，field为节点标识，value为节点本地还未卖出的库存
+local leaseKey = 'seckill:lease:' .. voucherId
 
 --3.脚本业务
---3.1.判断库存是否充足 get stockKey
-if(tonumber(redis.call('get',stockKey)) <= 0) then
-    --3.1.2.库存不足，返回1
-    return 1
+--3.0.判断秒杀时间窗口 hmget metaKey shards begin end dedup，时间使用redis服务器时间(毫秒)
+local meta = redis.call('hmget', metaKey, 'shards', 'begin', 'end', 'dedup')
+local bitmap = meta[4] == '1'
+if(meta[2] or meta[3]) then
+    local time = redis.call('time')
+    local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+    if(meta[2] and now < tonumber(meta[2])) then
+        --3.0.1.秒杀尚未开始，返回3
+        return {3}
+    end
+    if(meta[3] and now > tonumber(meta[3])) then
+        --3.0.2.秒杀已经结束，返回4
+        return {4}
+    end
 end
---3.2.判断用户是否下单 SISMEMBER orderKey userId
-if(redis.call('sismember',orderKey,userId)==1) then
+--3.1.判断库存是否充足，使用租约库存时已经在节点本地判断过
+local leased = leaseHolder ~= nil and leaseHolder ~= ''
+if(leased) then
+    --3.1.0.节点的租约已经被回收(心跳中断过)，本地的租约库存作废，返回5
+    if(tonumber(redis.call('hget', leaseKey, leaseHolder) or '0') <= 0) then
+        return {5}
+    end
+else
+    local shards = tonumber(meta[1] or '1')
+    if(shards <= 1) then
+        --3.1.1.未分片 get stockKey
+        if(tonumber(redis.call('get',stockKey)) <= 0) then
+            --3.1.2.库存不足，返回1
+            return {1}
+        end
+    else
+        --3.1.3.分片库存，按用户id取模选出首选分片，首选分片卖完后依次尝试其它分片
+        local start = tonumber(userId) % shards
+        local shardKey = nil
+        for i = 0, shards - 1 do
+            local key = stockKey .. ':' .. ((start + i) % shards)
+            if(tonumber(redis.call('get', key) or '0') > 0) then
+                shardKey = key
+                break
+            end
+        end
+        if(shardKey == nil) then
+            --3.1.4.所有分片都没有库存，返回1
+            return {1}
+        end
+        stockKey = shardKey
+    end
+end
+--3.2.判断用户是否下单 SISMEMBER orderKey userId，Bitmap模式为 GETBIT orderKey userId
+local ordered
+if(bitmap) then
+    ordered = redis.call('getbit',orderKey,userId)
+else
+    ordered = redis.call('sismember',orderKey,userId)
+end
+if(ordered==1) then
     --3.2.1.存在，说明是重复下单，返回2
-    return 2
+    return {2}
 end
---3.3.扣库存 incrby stockKey -1
-redis.call('incrby',stockKey,-1)
---3.4.下单 sadd orderKey userId
-redis.call('sadd',orderKey,userId)
-
---3.6 发送消息到队列中,XADD stream.orders * k1 v1 k2 v2 ...
+--3.3.扣库存 incrby stockKey -1，租约库存则把节点持有的租约减1
+if(leased) then
+    redis.call('hincrby',leaseKey,leaseHolder,-1)
+else
+    redis.call('incrby',stockKey,-1)
+end
+--3.4.下单 sadd orderKey userId，Bitmap模式为 setbit orderKey userId 1
+if(bitmap) then
+    redis.call('setbit',orderKey,userId,1)
+else
+    redis.call('sadd',orderKey,userId)
+end
+--3.5.生成订单id：时间戳<<32 | 当天的自增序列号，与RedisIdWorker的格式一致，只有下单成功才消耗序列号
+if(orderId == nil or orderId == '') then
+    local count = redis.call('incr', idKey)
+    --lua的数字是double，只能精确表示53位整数，按十进制拆成高低两段计算：2^32 = 4294 * 10^6 + 967296
+    local low = idTimestamp * 967296 + count
+    local high = idTimestamp * 4294 + math.floor(low / 1000000)
+    low = low % 1000000
+    if(high > 0) then
+        orderId = string.format('%.0f%06d', high, low)
+    else
+        orderId = string.format('%d', low)
+    end
+end
+--3.6 记录订单处理结果为排队中 set order:status:{orderId} 0|userId ex statusTtl
+redis.call('set', 'order:status:' .. orderId, '0|' .. userId, 'ex', statusTtl)
+--3.7 发送消息到队列中,XADD stream.orders * k1 v1 k2 v2 ...
 redis.call('xadd','stream.orders','*','userId',userId,'voucherId',voucherId,'id',orderId)
-return 0
\ No newline at end of file
+return {0, orderId}
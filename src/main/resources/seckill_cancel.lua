@@ -0,0 +1,38 @@
+--取消订单后归还redis中的库存，并移除这些用户的一人一单记录
+--1.参数列表
+--1.1.优惠券id
+local voucherId = ARGV[1]
+--1.2.ARGV[2..n] 取消了订单的用户id
+
+--2.数据key
+local stockKey = 'seckill:stock:' .. voucherId
+local orderKey = 'seckill:order:' .. voucherId
+local metaKey = 'seckill:meta:' .. voucherId
+
+--3.脚本业务
+local meta = redis.call('hmget', metaKey, 'shards', 'dedup')
+if(not meta[1]) then
+    if(redis.call('exists', stockKey) == 0) then
+        --3.0.redis中没有这张券(没有预热或者被清空)，预热时会按数据库加载，返回0
+        return 0
+    end
+    --3.0.1.元数据中没有分片数但有未分片的库存key(比如元数据功能上线之前写入的券)，按未分片归还
+    meta[1] = '1'
+end
+local shards = tonumber(meta[1])
+for i = 2, #ARGV do
+    local userId = ARGV[i]
+    --3.1.归还库存，分片库存归还到用户的首选分片
+    if(shards > 1) then
+        redis.call('incrby', stockKey .. ':' .. (tonumber(userId) % shards), 1)
+    else
+        redis.call('incrby', stockKey, 1)
+    end
+    --3.2.移除一人一单记录，Bitmap模式为 setbit orderKey userId 0
+    if(meta[2] == '1') then
+        redis.call('setbit', orderKey, userId, 0)
+    else
+        redis.call('srem', orderKey, userId)
+    end
+end
+return #ARGV - 1
@@ -0,0 +1,57 @@
+--订单没有创建成功时回滚 seckill.lua 在redis中做过的修改，同一个订单只补偿一次
+--1.参数列表
+--1.1.优惠券id
+local voucherId = ARGV[1]
+--1.2.用户id
+local userId = ARGV[2]
+--1.3.订单id
+local orderId = ARGV[3]
+--1.4.是否移除一人一单记录，1表示移除；用户已经有其它订单时只归还库存
+local removeBuyer = ARGV[4]
+--1.5.失败原因
+local reason = ARGV[5]
+--1.6.订单处理结果的有效期(秒)
+local statusTtl = ARGV[6]
+--1.7.补偿标记的有效期(秒)
+local markerTtl = ARGV[7]
+--1.8.补偿流水大约保留的消息数
+local compensationMaxLen = ARGV[8]
+
+--2.数据key
+local stockKey = 'seckill:stock:' .. voucherId
+local orderKey = 'seckill:order:' .. voucherId
+local metaKey = 'seckill:meta:' .. voucherId
+local markerKey = 'seckill:compensation:' .. orderId
+
+--3.脚本业务
+--3.1.已经补偿过，返回0
+if(not redis.call('set', markerKey, '1', 'nx', 'ex', markerTtl)) then
+    return 0
+end
+--3.2.归还库存，分片库存归还到用户的首选分片。redis中没有这张券(没有预热或者被清空)时跳过，预热时会按数据库加载；
+--元数据中没有分片数但有未分片的库存key时(比如元数据功能上线之前写入的券)，按未分片归还
+local meta = redis.call('hmget', metaKey, 'shards', 'dedup')
+if(not meta[1] and redis.call('exists', stockKey) == 1) then
+    meta[1] = '1'
+end
+if(meta[1]) then
+    local shards = tonumber(meta[1])
+    if(shards > 1) then
+        stockKey = stockKey .. ':' .. (tonumber(userId) % shards)
+    end
+    redis.call('incrby', stockKey, 1)
+    --3.3.移除一人一单记录 srem orderKey userId，Bitmap模式为 setbit orderKey userId 0
+    if(removeBuyer == '1') then
+        if(meta[2] == '1') then
+            redis.call('setbit', orderKey, userId, 0)
+        else
+            redis.call('srem', orderKey, userId)
+        end
+    end
+end
+--3.4.记录订单处理结果为下单失败
+redis.call('set', 'order:status:' .. orderId, '2|' .. userId .. '|' .. reason, 'ex', statusTtl)
+--3.5.记录补偿流水 XADD stream.orders.compensation MAXLEN ~ compensationMaxLen * k1 v1 ...
+redis.call('xadd', 'stream.orders.compensation', 'maxlen', '~', compensationMaxLen, '*',
+        'id', orderId, 'userId', userId, 'voucherId', voucherId, 'removeBuyer', removeBuyer, 'reason', reason)
+return 1
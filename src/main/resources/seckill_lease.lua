@@ -0,0 +1,42 @@
+--从redis库存中一次租出一批库存到节点本地
+--1.参数列表
+--1.1.优惠券id
+local voucherId = ARGV[1]
+--1.2.本次最多租用的数量
+local chunk = tonumber(ARGV[2])
+--1.3.节点标识
+local nodeId = ARGV[3]
+
+--2.数据key
+local stockKey = 'seckill:stock:' .. voucherId
+local metaKey = 'seckill:meta:' .. voucherId
+local leaseKey = 'seckill:lease:' .. voucherId
+
+--3.扣减库存，分片库存依次从各个分片中扣减
+local got = 0
+local shards = tonumber(redis.call('hget', metaKey, 'shards') or '1')
+if(shards <= 1) then
+    local stock = tonumber(redis.call('get', stockKey) or '0')
+    got = math.min(stock, chunk)
+    if(got > 0) then
+        redis.call('incrby', stockKey, -got)
+    end
+else
+    for i = 0, shards - 1 do
+        if(got >= chunk) then
+            break
+        end
+        local key = stockKey .. ':' .. i
+        local stock = tonumber(redis.call('get', key) or '0')
+        local take = math.min(stock, chunk - got)
+        if(take > 0) then
+            redis.call('incrby', key, -take)
+            got = got + take
+        end
+    end
+end
+--4.记录节点持有的租约，便于对账
+if(got > 0) then
+    redis.call('hincrby', leaseKey, nodeId, got)
+end
+return got
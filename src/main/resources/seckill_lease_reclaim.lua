@@ -0,0 +1,30 @@
+--回收失联节点持有的租约库存：节点心跳key过期后，它本地没有卖出的库存归还到redis库存
+--1.参数列表
+--1.1.优惠券id
+local voucherId = ARGV[1]
+--1.2.租约持有节点
+local nodeId = ARGV[2]
+--1.3.是否跳过心跳检查，1表示节点回收自己的租约(重启后或者心跳中断后)
+local force = ARGV[3]
+
+--2.数据key，分片库存统一归还到0号分片
+local stockKey = 'seckill:stock:' .. voucherId
+local metaKey = 'seckill:meta:' .. voucherId
+local leaseKey = 'seckill:lease:' .. voucherId
+
+--3.节点仍然存活，不回收，返回0
+if(force ~= '1' and redis.call('exists', 'seckill:lease-node:' .. nodeId) == 1) then
+    return 0
+end
+--4.移除节点的租约，把剩余库存归还
+local count = tonumber(redis.call('hget', leaseKey, nodeId) or '0')
+redis.call('hdel', leaseKey, nodeId)
+if(count <= 0) then
+    return 0
+end
+local shards = tonumber(redis.call('hget', metaKey, 'shards') or '1')
+if(shards > 1) then
+    stockKey = stockKey .. ':0'
+end
+redis.call('incrby', stockKey, count)
+return count
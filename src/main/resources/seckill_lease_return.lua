@@ -0,0 +1,31 @@
+--把节点本地没有卖出的租约库存归还到redis库存
+--1.参数列表
+--1.1.优惠券id
+local voucherId = ARGV[1]
+--1.2.归还的数量
+local count = tonumber(ARGV[2])
+--1.3.节点标识
+local nodeId = ARGV[3]
+
+--2.数据key，分片库存统一归还到0号分片
+local stockKey = 'seckill:stock:' .. voucherId
+local metaKey = 'seckill:meta:' .. voucherId
+local leaseKey = 'seckill:lease:' .. voucherId
+local shards = tonumber(redis.call('hget', metaKey, 'shards') or '1')
+if(shards > 1) then
+    stockKey = stockKey .. ':0'
+end
+
+--3.最多归还节点仍然持有的数量，租约已经被回收(节点心跳中断过)时不能重复归还
+local held = tonumber(redis.call('hget', leaseKey, nodeId) or '0')
+count = math.min(count, held)
+if(count <= 0) then
+    redis.call('hdel', leaseKey, nodeId)
+    return 0
+end
+--4.归还库存，扣减节点持有的租约
+redis.call('incrby', stockKey, count)
+if(redis.call('hincrby', leaseKey, nodeId, -count) <= 0) then
+    redis.call('hdel', leaseKey, nodeId)
+end
+return count
@@ -0,0 +1,61 @@
+--找出有还没处理完的订单消息的秒杀券：pending-list中未确认的消息和消费者组还没有投递的消息，
+--对账时这些券的Redis已经扣了库存，数据库还没有订单。返回 {是否超出扫描上限(1/0), 券id1, 券id2, ...}
+--1.参数列表
+--1.1.最多扫描的消息数，超出时返回1，调用方按全部秒杀券都有未处理的订单处理
+local limit = tonumber(ARGV[1])
+
+--2.数据key
+local streamKey = 'stream.orders'
+local groupName = 'g1'
+
+--3.脚本业务
+if(redis.call('exists', streamKey) == 0) then
+    return {0}
+end
+local lastDelivered = nil
+for _, group in ipairs(redis.call('xinfo', 'groups', streamKey)) do
+    local info = {}
+    for i = 1, #group, 2 do
+        info[group[i]] = group[i + 1]
+    end
+    if(info['name'] == groupName) then
+        lastDelivered = info['last-delivered-id']
+    end
+end
+if(lastDelivered == nil) then
+    --还没有消费者组，消息都没有处理
+    return {1}
+end
+local vouchers = {}
+local function addVoucher(entry)
+    local fields = entry[2]
+    for i = 1, #fields, 2 do
+        if(fields[i] == 'voucherId') then
+            vouchers[fields[i + 1]] = true
+        end
+    end
+end
+--3.1.已经投递但还没有确认的消息 XPENDING stream.orders g1 - + limit
+local pending = redis.call('xpending', streamKey, groupName, '-', '+', limit + 1)
+if(#pending > limit) then
+    return {1}
+end
+for _, message in ipairs(pending) do
+    local entries = redis.call('xrange', streamKey, message[1], message[1])
+    if(#entries > 0) then
+        addVoucher(entries[1])
+    end
+end
+--3.2.还没有投递的消息 XRANGE stream.orders (lastDelivered + COUNT limit
+local undelivered = redis.call('xrange', streamKey, '(' .. lastDelivered, '+', 'count', limit + 1)
+if(#undelivered > limit) then
+    return {1}
+end
+for _, entry in ipairs(undelivered) do
+    addVoucher(entry)
+end
+local result = {0}
+for voucherId in pairs(vouchers) do
+    table.insert(result, voucherId)
+end
+return result
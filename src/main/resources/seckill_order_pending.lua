@@ -0,0 +1,10 @@
+--读取stream.orders的pending-list详情，返回 {{消息id, 消费者, 空闲毫秒数, 投递次数}, ...}
+--spring-data-redis 2.3 解析lettuce 6.1的XPENDING扩展格式结果会报错，所以通过脚本执行
+--1.参数列表
+--1.1.起始消息id(包含)
+local start = ARGV[1]
+--1.2.最多返回的条数
+local count = ARGV[2]
+
+--2.XPENDING stream.orders g1 start + count
+return redis.call('xpending', 'stream.orders', 'g1', start, '+', count)
@@ -0,0 +1,56 @@
+--裁剪stream.orders，返回 {删除的消息数, 裁剪前占用内存, 裁剪后占用内存}
+--1.参数列表
+--1.1.裁剪策略：minid，只删除所有消费者组都已经确认过的消息；maxlen，最多保留maxLen条，未消费的消息也可能被删除
+local policy = ARGV[1]
+--1.2.maxlen策略最多保留的消息数
+local maxLen = ARGV[2]
+
+--2.数据key
+local streamKey = 'stream.orders'
+
+--3.脚本业务
+if(redis.call('exists', streamKey) == 0) then
+    return {0, 0, 0}
+end
+--3.1.比较消息id，id格式为 毫秒时间戳-序号
+local function lessThan(a, b)
+    local aMs, aSeq = string.match(a, '(%d+)-(%d+)')
+    local bMs, bSeq = string.match(b, '(%d+)-(%d+)')
+    aMs, bMs = tonumber(aMs), tonumber(bMs)
+    if(aMs ~= bMs) then
+        return aMs < bMs
+    end
+    return tonumber(aSeq) < tonumber(bSeq)
+end
+local args
+if(policy == 'maxlen') then
+    args = {'maxlen', '~', maxLen}
+else
+    --3.2.找出可以删除的边界：每个消费者组最早未确认的消息，没有未确认消息时为最后投递的消息
+    local minId = nil
+    local groups = redis.call('xinfo', 'groups', streamKey)
+    for _, group in ipairs(groups) do
+        local info = {}
+        for i = 1, #group, 2 do
+            info[group[i]] = group[i + 1]
+        end
+        local boundary = info['last-delivered-id']
+        if(info['pending'] > 0) then
+            --XPENDING key group 返回 {未确认数, 最小id, 最大id, 消费者列表}
+            boundary = redis.call('xpending', streamKey, info['name'])[2]
+        end
+        if(minId == nil or lessThan(boundary, minId)) then
+            minId = boundary
+        end
+    end
+    if(minId == nil) then
+        --没有消费者组，不知道哪些消息已经消费过，不裁剪
+        return {0, 0, 0}
+    end
+    args = {'minid', '~', minId}
+end
+--3.3.近似裁剪，只删除完整的宏节点，开销很小
+local before = redis.call('memory', 'usage', streamKey)
+local trimmed = redis.call('xtrim', streamKey, unpack(args))
+local after = redis.call('memory', 'usage', streamKey)
+return {trimmed, before, after}
@@ -0,0 +1,43 @@
+--秒杀预热：redis中没有这张券的数据时(比如redis重启或被清空)按数据库初始化，已有数据时只刷新时间窗口
+--1.参数列表
+--1.1.优惠券id
+local voucherId = ARGV[1]
+--1.2.数据库中的库存
+local stock = tonumber(ARGV[2])
+--1.3.库存分片数
+local shards = tonumber(ARGV[3])
+--1.4.秒杀开始、结束时间(毫秒时间戳)
+local beginTime = ARGV[4]
+local endTime = ARGV[5]
+--1.5.一人一单记录方式
+local dedup = ARGV[6]
+
+--2.数据key
+local stockKey = 'seckill:stock:' .. voucherId
+local metaKey = 'seckill:meta:' .. voucherId
+
+--3.已经有数据，只刷新时间窗口，返回0
+if(redis.call('exists', metaKey, stockKey) > 0) then
+    redis.call('hset', metaKey, 'begin', beginTime, 'end', endTime)
+    --3.1.元数据功能上线之前写入的券只有未分片的库存key，补上分片数和一人一单记录方式(Set)，
+    --取消订单和补偿脚本依赖分片数归还库存
+    if(redis.call('exists', stockKey) == 1) then
+        redis.call('hsetnx', metaKey, 'shards', 1)
+        redis.call('hsetnx', metaKey, 'dedup', 0)
+    end
+    return 0
+end
+--4.没有数据，按数据库库存初始化，返回1
+if(shards <= 1) then
+    redis.call('set', stockKey, stock)
+else
+    for i = 0, shards - 1 do
+        local count = math.floor(stock / shards)
+        if(i < stock % shards) then
+            count = count + 1
+        end
+        redis.call('set', stockKey .. ':' .. i, count)
+    end
+end
+redis.call('hset', metaKey, 'shards', shards, 'begin', beginTime, 'end', endTime, 'dedup', dedup)
+return 1
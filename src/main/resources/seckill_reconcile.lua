@@ -0,0 +1,67 @@
+--对账修复：Redis中的库存和已下单用户在对账读取之后没有变化时，才按数据库修复
+--1.参数列表
+--1.1.优惠券id
+local voucherId = ARGV[1]
+--1.2.对账时读到的 库存 + 租约库存、已下单用户数
+local observedStock = tonumber(ARGV[2])
+local observedBuyers = tonumber(ARGV[3])
+--1.3.修复后的库存
+local targetStock = tonumber(ARGV[4])
+--1.4.按数据库重建的已下单用户临时key，为空表示不需要重建
+local rebuildKey = ARGV[5]
+
+--2.数据key
+local stockKey = 'seckill:stock:' .. voucherId
+local orderKey = 'seckill:order:' .. voucherId
+local metaKey = 'seckill:meta:' .. voucherId
+local leaseKey = 'seckill:lease:' .. voucherId
+
+--3.脚本业务
+--3.1.重新读取当前的库存、租约库存和已下单用户数
+local meta = redis.call('hmget', metaKey, 'shards', 'dedup')
+local shards = tonumber(meta[1] or '1')
+local stock = 0
+if(shards <= 1) then
+    stock = tonumber(redis.call('get', stockKey) or '0')
+else
+    for i = 0, shards - 1 do
+        stock = stock + tonumber(redis.call('get', stockKey .. ':' .. i) or '0')
+    end
+end
+for _, leased in ipairs(redis.call('hvals', leaseKey)) do
+    stock = stock + tonumber(leased)
+end
+local buyers
+if(meta[2] == '1') then
+    buyers = redis.call('bitcount', orderKey)
+else
+    buyers = redis.call('scard', orderKey)
+end
+--3.2.对账之后又有人下单，放弃修复，返回0
+if(stock ~= observedStock or buyers ~= observedBuyers) then
+    if(rebuildKey ~= '') then
+        redis.call('del', rebuildKey)
+    end
+    return 0
+end
+--3.3.修复库存，分片库存按预热时的方式重新分配
+if(shards <= 1) then
+    redis.call('set', stockKey, targetStock)
+else
+    for i = 0, shards - 1 do
+        local count = math.floor(targetStock / shards)
+        if(i < targetStock % shards) then
+            count = count + 1
+        end
+        redis.call('set', stockKey .. ':' .. i, count)
+    end
+end
+--3.4.用重建好的已下单用户替换原来的
+if(rebuildKey ~= '') then
+    if(redis.call('exists', rebuildKey) == 1) then
+        redis.call('rename', rebuildKey, orderKey)
+    else
+        redis.call('del', orderKey)
+    end
+end
+return 1
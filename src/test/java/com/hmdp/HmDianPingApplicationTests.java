@@ -1,29 +1,74 @@
 package com.hmdp;
 
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.config.HmdpProperties;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.Shop;
+import com.hmdp.entity.User;
+import com.hmdp.entity.Voucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IUserService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
 import com.hmdp.service.impl.ShopServiceImpl;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheCodec;
+import com.hmdp.utils.JwtUtil;
 import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.RedisData;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SnowflakeIdWorker;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import com.sun.management.ThreadMXBean;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
 import org.springframework.data.geo.Point;
 import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
 
 import javax.annotation.Resource;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
+import static com.hmdp.service.impl.UserServiceImpl.SECRET_KEY;
+import static com.hmdp.service.impl.UserServiceImpl.USER_ID;
 import static com.hmdp.utils.RedisConstants.SHOP_GEO_KEY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
-@SpringBootTest
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
 class HmDianPingApplicationTests {
     @Resource
     private ShopServiceImpl shopService;
@@ -34,9 +79,36 @@ class HmDianPingApplicationTests {
     @Resource
     private RedisIdWorker redisIdWorker;
 
+    @Resource
+    private SnowflakeIdWorker snowflakeIdWorker;
+
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private HmdpProperties hmdpProperties;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    @Resource
+    private IVoucherService voucherService;
+
+    @Resource
+    private IUserService userService;
+
+    @Resource
+    private TestRestTemplate restTemplate;
+
+    @Resource
+    private List<CacheCodec> cacheCodecs;
+
     private ExecutorService es = Executors.newFixedThreadPool(500);
 
     @Test
@@ -65,6 +137,73 @@ class HmDianPingApplicationTests {
         System.out.println("time = " + (end - start));
     }
 
+    @Test
+    void testIdWorkerSegment() throws InterruptedException {
+        // 对比每个ID都INCR一次和号段分配的吞吐，同时检查ID不重复
+        int segmentSize = hmdpProperties.getId().getSegmentSize();
+        try {
+            for (int size : new int[]{1, 1000}) {
+                hmdpProperties.getId().setSegmentSize(size);
+                // 预热
+                for (int i = 0; i < 2000; i++) {
+                    redisIdWorker.nexId("bench");
+                }
+                Set<Long> ids = ConcurrentHashMap.newKeySet();
+                CountDownLatch latch = new CountDownLatch(300);
+                Runnable task = () -> {
+                    for (int i = 0; i < 1000; i++) {
+                        ids.add(redisIdWorker.nexId("bench"));
+                    }
+                    latch.countDown();
+                };
+                long start = System.nanoTime();
+                for (int i = 0; i < 300; i++) {
+                    es.submit(task);
+                }
+                latch.await();
+                long time = System.nanoTime() - start;
+                System.out.println("segmentSize = " + size + ", ids = " + ids.size()
+                        + ", time = " + time / 1000000 + "ms, ops/s = " + 300000L * 1000000000L / time);
+                assertEquals(300000, ids.size());
+            }
+        } finally {
+            hmdpProperties.getId().setSegmentSize(segmentSize);
+        }
+    }
+
+    @Test
+    void testSnowflakeIdWorker() throws InterruptedException {
+        // 雪花算法生成ID不访问Redis，检查多线程下不重复，时间戳部分与RedisIdWorker一致
+        long redisId = redisIdWorker.nexId("bench");
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        CountDownLatch latch = new CountDownLatch(300);
+        Runnable task = () -> {
+            for (int i = 0; i < 1000; i++) {
+                ids.add(snowflakeIdWorker.nextId());
+            }
+            latch.countDown();
+        };
+        long start = System.nanoTime();
+        for (int i = 0; i < 300; i++) {
+            es.submit(task);
+        }
+        latch.await();
+        long time = System.nanoTime() - start;
+        long snowflakeId = snowflakeIdWorker.nextId();
+        System.out.println("ids = " + ids.size() + ", time = " + time / 1000000 + "ms, ops/s = " + 300000L * 1000000000L / time);
+        System.out.println("redis timestamp = " + (redisId >>> 32) + ", snowflake timestamp = " + (snowflakeId >>> 32));
+        assertEquals(300000, ids.size());
+        // 单线程生成一个ID的耗时
+        int count = 1000000;
+        for (int round = 0; round < 3; round++) {
+            start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                snowflakeIdWorker.nextId();
+            }
+            System.out.println("ns/id = " + (System.nanoTime() - start) / count);
+        }
+    }
+
     @Test
     void loadShopData() {
         // 1.查询店铺信息
@@ -107,6 +246,393 @@ class HmDianPingApplicationTests {
         System.out.println("size = " + size);
     }
 
+    @Test
+    void testSeckillDedupMemory() {
+        // 对比一人一单两种记录方式：Set 和 按用户id索引的Bitmap
+        int users = 1000000;
+        String setKey = "test:dedup:set";
+        String bitmapKey = "test:dedup:bitmap";
+        byte[] rawSetKey = setKey.getBytes(StandardCharsets.UTF_8);
+        byte[] rawBitmapKey = bitmapKey.getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.delete(Arrays.asList(setKey, bitmapKey));
+        // 1.重置命令统计，commandstats 中的 usec_per_call 是redis服务端每次调用耗费的CPU时间
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            connection.serverCommands().resetConfigStats();
+            return null;
+        });
+        // 2.写入连续的用户id，模拟 tb_user 的自增id
+        for (int i = 1; i <= users; i += 10000) {
+            int from = i;
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (int id = from; id < from + 10000 && id <= users; id++) {
+                    byte[] member = String.valueOf(id).getBytes(StandardCharsets.UTF_8);
+                    connection.sAdd(rawSetKey, member);
+                    connection.setBit(rawBitmapKey, id, true);
+                }
+                return null;
+            });
+        }
+        // 3.查询，一半命中一半不命中
+        for (int i = 1; i <= users; i += 10000) {
+            int from = i + users / 2;
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (int id = from; id < from + 10000; id++) {
+                    connection.sIsMember(rawSetKey, String.valueOf(id).getBytes(StandardCharsets.UTF_8));
+                    connection.getBit(rawBitmapKey, id);
+                }
+                return null;
+            });
+        }
+        // 4.统计内存和CPU
+        // lettuce不支持直接发送 MEMORY 命令，借助脚本执行，SAMPLES 0 表示统计Set的全部元素
+        DefaultRedisScript<Long> memoryUsage = new DefaultRedisScript<>(
+                "return redis.call('memory', 'usage', KEYS[1], 'samples', 0)", Long.class);
+        Long setMemory = stringRedisTemplate.execute(memoryUsage, Collections.singletonList(setKey));
+        Long bitmapMemory = stringRedisTemplate.execute(memoryUsage, Collections.singletonList(bitmapKey));
+        Properties stats = stringRedisTemplate.execute((RedisCallback<Properties>) connection ->
+                connection.serverCommands().info("commandstats"));
+        System.out.println("set memory = " + setMemory + ", bitmap memory = " + bitmapMemory);
+        for (String cmd : Arrays.asList("sadd", "setbit", "sismember", "getbit")) {
+            System.out.println(cmd + " : " + stats.getProperty("cmdstat_" + cmd));
+        }
+        stringRedisTemplate.delete(Arrays.asList(setKey, bitmapKey));
+    }
 
+    @Test
+    void testOrderInsertMode() {
+        // 对比单条下单的两种一人一单保证方式：Redisson用户锁 + 查询已有订单，唯一索引 + INSERT IGNORE
+        int count = 2000;
+        long voucherId = 9000001L;
+        // 秒杀明天才开始，不会被预热到Redis
+        LocalDateTime begin = LocalDateTime.now().plusDays(1);
+        seckillVoucherService.save(new SeckillVoucher().setVoucherId(voucherId).setStock(count * 3)
+                .setBeginTime(begin).setEndTime(begin.plusHours(1)));
+        List<String> orderIds = new ArrayList<>();
+        try {
+            // 预热
+            for (int i = 0; i < count; i++) {
+                orderIds.add(createOrder(voucherId, 3000000L + i, true).toString());
+            }
+            for (boolean ignore : new boolean[]{false, true}) {
+                long userBase = ignore ? 2000000L : 1000000L;
+                long start = System.nanoTime();
+                for (int i = 0; i < count; i++) {
+                    orderIds.add(createOrder(voucherId, userBase + i, ignore).toString());
+                }
+                long time = System.nanoTime() - start;
+                System.out.println((ignore ? "ignore" : "lock") + " : us/order = " + time / 1000 / count);
+            }
+            // 重复投递和重复下单都不会插入
+            VoucherOrder order = new VoucherOrder();
+            order.setId(Long.valueOf(orderIds.get(orderIds.size() - 1)));
+            order.setUserId(2000000L + count - 1);
+            order.setVoucherId(voucherId);
+            voucherOrderService.createVoucherOrderIdempotent(order);
+            order.setId(redisIdWorker.nexId("order"));
+            voucherOrderService.createVoucherOrderIdempotent(order);
+            Integer orders = voucherOrderService.query().eq("voucher_id", voucherId).count();
+            Integer stock = seckillVoucherService.getById(voucherId).getStock();
+            System.out.println("orders = " + orders + ", stock = " + stock);
+            assertEquals(count * 3, orders.intValue());
+            assertEquals(0, stock.intValue());
+        } finally {
+            voucherOrderService.remove(new QueryWrapper<VoucherOrder>().eq("voucher_id", voucherId));
+            seckillVoucherService.removeById(voucherId);
+            stringRedisTemplate.opsForZSet().remove(RedisConstants.ORDER_UNPAID_KEY, orderIds.toArray());
+        }
+    }
 
+    private Long createOrder(long voucherId, long userId, boolean ignore) {
+        VoucherOrder order = new VoucherOrder();
+        order.setId(redisIdWorker.nexId("order"));
+        order.setUserId(userId);
+        order.setVoucherId(voucherId);
+        if (ignore) {
+            voucherOrderService.createVoucherOrderIdempotent(order);
+            return order.getId();
+        }
+        RLock lock = redissonClient.getLock("lock:order:" + userId);
+        if (lock.tryLock()) {
+            try {
+                voucherOrderService.createVoucherOrder(order);
+            } finally {
+                lock.unlock();
+            }
+        }
+        return order.getId();
+    }
+
+    @Test
+    void testQueryWithMutexStampede() throws InterruptedException {
+        // 热点key失效后大量并发请求同时未命中，统计查询数据库的次数和请求耗时
+        String keyPrefix = "cache:test:stampede:";
+        long id = 99999999L;
+        int threads = 200;
+        stringRedisTemplate.delete(keyPrefix + id);
+        AtomicInteger dbQueries = new AtomicInteger();
+        Shop shop = shopService.getById(1L);
+        long[] latencies = new long[threads];
+        Shop[] results = new Shop[threads];
+        CountDownLatch latch = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            int index = i;
+            es.submit(() -> {
+                long start = System.nanoTime();
+                try {
+                    results[index] = cacheClient.queryWithMutex(keyPrefix, id, Shop.class, shopId -> {
+                        dbQueries.incrementAndGet();
+                        try {
+                            // 模拟耗时的数据库查询
+                            Thread.sleep(100);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        return shop;
+                    }, 1L, TimeUnit.MINUTES);
+                } finally {
+                    latencies[index] = System.nanoTime() - start;
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        Arrays.sort(latencies);
+        System.out.println("db queries = " + dbQueries.get() + ", p50 = " + latencies[threads / 2] / 1000000
+                + "ms, max = " + latencies[threads - 1] / 1000000 + "ms");
+        stringRedisTemplate.delete(keyPrefix + id);
+        // 只有一个请求查询数据库，其余请求都拿到它的结果
+        assertEquals(1, dbQueries.get());
+        for (Shop result : results) {
+            assertNotNull(result);
+        }
+    }
+
+    @Test
+    void testCacheCodec() {
+        // 对比缓存编码：每次命中需要解码的字节数、CPU时间和内存分配，并检查解码后和原来的值相同
+        Shop shop = shopService.getById(1L);
+        RedisData logical = new RedisData();
+        logical.setData(shop);
+        // JSON 按毫秒时间戳写入时间，去掉纳秒部分才能比较
+        logical.setExpireTime(LocalDateTime.now().plusMinutes(30).withNano(0));
+        UserDTO user = BeanUtil.copyProperties(userService.getById(1L), UserDTO.class);
+        int count = 20000;
+        ThreadMXBean threadBean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        for (CacheCodec codec : cacheCodecs) {
+            Map<String, Object> samples = new LinkedHashMap<>();
+            samples.put("Shop", shop);
+            samples.put("RedisData<Shop>", logical);
+            samples.put("UserDTO", user);
+            for (Map.Entry<String, Object> sample : samples.entrySet()) {
+                Object value = sample.getValue();
+                Function<byte[], Object> decoder;
+                if (value instanceof RedisData) {
+                    // 和 queryWithLogicExpire 一样解码出目标类型
+                    decoder = bytes -> {
+                        Object data = codec.decode(bytes, RedisData.class).getData();
+                        return data instanceof Shop ? data : JSONUtil.toBean((JSONObject) data, Shop.class);
+                    };
+                } else {
+                    decoder = bytes -> codec.decode(bytes, value.getClass());
+                }
+                byte[] bytes = codec.encode(value);
+                String name = codec.name() + " " + sample.getKey();
+                assertEquals(value instanceof RedisData ? shop : value, decoder.apply(bytes), name);
+                if (value instanceof RedisData) {
+                    assertEquals(logical.getExpireTime(), codec.decode(bytes, RedisData.class).getExpireTime(), name);
+                }
+                // 预热
+                for (int i = 0; i < count; i++) {
+                    decoder.apply(codec.encode(value));
+                }
+                long start = System.nanoTime();
+                for (int i = 0; i < count; i++) {
+                    codec.encode(value);
+                }
+                long encodeTime = System.nanoTime() - start;
+                long allocated = threadBean.getThreadAllocatedBytes(threadId);
+                start = System.nanoTime();
+                for (int i = 0; i < count; i++) {
+                    decoder.apply(bytes);
+                }
+                long decodeTime = System.nanoTime() - start;
+                allocated = threadBean.getThreadAllocatedBytes(threadId) - allocated;
+                System.out.println(name + " : bytes = " + bytes.length
+                        + ", encode ns/op = " + encodeTime / count + ", decode ns/op = " + decodeTime / count
+                        + ", decode alloc bytes/op = " + allocated / count);
+            }
+        }
+    }
+
+    @Test
+    void testLogicalExpireHeader() throws InterruptedException {
+        // 对比逻辑过期的两种存储格式：旧格式 RedisData 整体反序列化，新格式先读头部的过期时间再只解码数据
+        String keyPrefix = "cache:test:logical:";
+        String key = keyPrefix + 1L;
+        Shop shop = shopService.getById(1L);
+        int count = 5000;
+        ThreadMXBean threadBean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        HmdpProperties.Cache properties = hmdpProperties.getCache();
+        boolean header = properties.isLogicalExpireHeader();
+        try {
+            for (boolean enabled : new boolean[]{false, true}) {
+                properties.setLogicalExpireHeader(enabled);
+                cacheClient.setWithLogicalExpire(key, shop, 30L, TimeUnit.MINUTES);
+                Shop cached = cacheClient.queryWithLogicExpire(keyPrefix, 1L, Shop.class, shopService::getById, 30L, TimeUnit.MINUTES);
+                assertEquals(shop.getName(), cached.getName());
+                // 预热
+                for (int i = 0; i < count; i++) {
+                    cacheClient.queryWithLogicExpire(keyPrefix, 1L, Shop.class, shopService::getById, 30L, TimeUnit.MINUTES);
+                }
+                long allocated = threadBean.getThreadAllocatedBytes(threadId);
+                long cpu = threadBean.getCurrentThreadCpuTime();
+                for (int i = 0; i < count; i++) {
+                    cacheClient.queryWithLogicExpire(keyPrefix, 1L, Shop.class, shopService::getById, 30L, TimeUnit.MINUTES);
+                }
+                cpu = threadBean.getCurrentThreadCpuTime() - cpu;
+                allocated = threadBean.getThreadAllocatedBytes(threadId) - allocated;
+                System.out.println((enabled ? "header" : "RedisData") + " : bytes = " + stringRedisTemplate.execute(
+                        (RedisCallback<Long>) connection -> connection.strLen(key.getBytes(StandardCharsets.UTF_8)))
+                        + ", cpu ns/op = " + cpu / count + ", alloc bytes/op = " + allocated / count);
+            }
+            // 过期后返回旧数据，同时重建
+            cacheClient.setWithLogicalExpire(key, shop, 0L, TimeUnit.SECONDS);
+            Shop stale = cacheClient.queryWithLogicExpire(keyPrefix, 1L, Shop.class, shopService::getById, 30L, TimeUnit.MINUTES);
+            assertEquals(shop.getName(), stale.getName());
+            // 等待重建完成释放锁，再删除测试数据
+            for (int i = 0; i < 50 && Boolean.TRUE.equals(stringRedisTemplate.hasKey(RedisConstants.LOCK_SHOP_KEY + 1L)); i++) {
+                Thread.sleep(100);
+            }
+        } finally {
+            properties.setLogicalExpireHeader(header);
+            cacheClient.delete(key);
+        }
+    }
+
+    /**
+     * 秒杀压测：通过HTTP接口对一张新建的秒杀券发起多轮并发抢购，输出吞吐和延迟，最后校验没有超卖、一人一单、Redis和数据库库存一致。
+     * 压测会写入临时用户和订单，默认不执行，需要时运行：
+     * mvn test -Dtest=HmDianPingApplicationTests#testSeckillLoad -Dseckill.load=true
+     * 可选参数：seckill.load.users 用户数，seckill.load.stock 库存，seckill.load.waves 轮数，
+     * seckill.load.concurrency 并发请求数，seckill.load.async=true 使用异步接口
+     */
+    @Test
+    @EnabledIfSystemProperty(named = "seckill.load", matches = "true")
+    void testSeckillLoad() throws Exception {
+        int userCount = Integer.getInteger("seckill.load.users", 2000);
+        int stock = Integer.getInteger("seckill.load.stock", 500);
+        int waves = Integer.getInteger("seckill.load.waves", 3);
+        int concurrency = Integer.getInteger("seckill.load.concurrency", 200);
+        String path = Boolean.getBoolean("seckill.load.async") ? "/voucher-order/seckill/%d/async" : "/voucher-order/seckill/%d";
+        // 1.准备临时用户，提前签发token
+        List<User> users = new ArrayList<>(userCount);
+        for (int i = 0; i < userCount; i++) {
+            users.add(new User().setPhone(String.format("190%08d", i)).setNickName("load_" + i));
+        }
+        userService.saveBatch(users);
+        List<String> tokens = new ArrayList<>(userCount);
+        for (User user : users) {
+            Map<String, Object> claims = new HashMap<>();
+            claims.put(USER_ID, user.getId());
+            tokens.add(JwtUtil.createJWT(SECRET_KEY, TimeUnit.HOURS.toMillis(1), claims));
+        }
+        // 2.新建秒杀券，库存写入Redis
+        Voucher voucher = new Voucher().setShopId(1L).setTitle("load test").setPayValue(100L).setActualValue(200L)
+                .setType(1).setStock(stock)
+                .setBeginTime(LocalDateTime.now().minusMinutes(1)).setEndTime(LocalDateTime.now().plusHours(1));
+        voucherService.addSeckillVoucher(voucher);
+        Long voucherId = voucher.getId();
+        ExecutorService clients = Executors.newFixedThreadPool(concurrency);
+        Set<String> orderIds = ConcurrentHashMap.newKeySet();
+        try {
+            // 3.每一轮所有用户各抢购一次
+            for (int wave = 1; wave <= waves; wave++) {
+                Map<String, AtomicInteger> results = new ConcurrentHashMap<>();
+                long[] latencies = new long[userCount];
+                CountDownLatch latch = new CountDownLatch(userCount);
+                long begin = System.nanoTime();
+                for (int i = 0; i < userCount; i++) {
+                    int index = i;
+                    clients.submit(() -> {
+                        long start = System.nanoTime();
+                        try {
+                            HttpHeaders headers = new HttpHeaders();
+                            headers.set("authorization", tokens.get(index));
+                            Result result = restTemplate.postForObject(String.format(path, voucherId),
+                                    new HttpEntity<>(headers), Result.class);
+                            String key = result == null ? "null" : result.getSuccess() ? "ok" : result.getErrorMsg();
+                            if (result != null && result.getSuccess()) {
+                                orderIds.add(result.getData().toString());
+                            }
+                            results.computeIfAbsent(key, k -> new AtomicInteger()).incrementAndGet();
+                        } catch (Exception e) {
+                            results.computeIfAbsent(e.getClass().getSimpleName(), k -> new AtomicInteger()).incrementAndGet();
+                        } finally {
+                            latencies[index] = System.nanoTime() - start;
+                            latch.countDown();
+                        }
+                    });
+                }
+                latch.await();
+                long time = System.nanoTime() - begin;
+                Arrays.sort(latencies);
+                System.out.println("wave " + wave + " : qps = " + userCount * 1000000000L / time
+                        + ", p50 = " + latencies[userCount / 2] / 1000 + "us"
+                        + ", p99 = " + latencies[(int) (userCount * 0.99)] / 1000 + "us"
+                        + ", p999 = " + latencies[(int) (userCount * 0.999)] / 1000 + "us"
+                        + ", results = " + results);
+            }
+            // 4.等待消费者把抢购成功的订单全部写入数据库，统计消息积压的消化时间
+            long drainStart = System.nanoTime();
+            int orders = 0;
+            while (System.nanoTime() - drainStart < TimeUnit.SECONDS.toNanos(60)) {
+                orders = voucherOrderService.query().eq("voucher_id", voucherId).count();
+                if (orders >= orderIds.size()) {
+                    break;
+                }
+                Thread.sleep(50);
+            }
+            System.out.println("stream drained in " + (System.nanoTime() - drainStart) / 1000000 + "ms"
+                    + ", accepted = " + orderIds.size() + ", orders = " + orders);
+            // 5.校验：没有超卖，一人一单，Redis库存 = 数据库库存
+            int dbStock = seckillVoucherService.getById(voucherId).getStock();
+            Map<Object, Object> meta = stringRedisTemplate.opsForHash().entries(RedisConstants.SECKILL_META_KEY + voucherId);
+            int shards = Integer.parseInt(meta.getOrDefault("shards", "1").toString());
+            int redisStock = 0;
+            for (int i = 0; i < shards; i++) {
+                String key = RedisConstants.SECKILL_STOCK_KEY + voucherId + (shards > 1 ? ":" + i : "");
+                String value = stringRedisTemplate.opsForValue().get(key);
+                redisStock += value == null ? 0 : Integer.parseInt(value);
+            }
+            for (Object leased : stringRedisTemplate.opsForHash().values("seckill:lease:" + voucherId)) {
+                redisStock += Integer.parseInt(leased.toString());
+            }
+            List<Object> repeatedUsers = voucherOrderService.listObjs(new QueryWrapper<VoucherOrder>()
+                    .select("user_id").eq("voucher_id", voucherId).groupBy("user_id").having("count(*) > 1"));
+            System.out.println("stock = " + stock + ", orders = " + orders
+                    + ", db stock = " + dbStock + ", redis stock = " + redisStock);
+            assertTrue(orders <= stock, "超卖");
+            assertEquals(orderIds.size(), orders, "抢购成功的订单没有全部写入数据库");
+            assertTrue(repeatedUsers.isEmpty(), "一人多单: " + repeatedUsers);
+            assertEquals(stock - orders, dbStock, "数据库库存和订单数不一致");
+            assertEquals(dbStock, redisStock, "Redis库存和数据库库存不一致");
+        } finally {
+            clients.shutdownNow();
+            voucherOrderService.remove(new QueryWrapper<VoucherOrder>().eq("voucher_id", voucherId));
+            seckillVoucherService.removeById(voucherId);
+            voucherService.removeById(voucherId);
+            userService.removeByIds(users.stream().map(User::getId).collect(Collectors.toList()));
+            if (!orderIds.isEmpty()) {
+                stringRedisTemplate.opsForZSet().remove(RedisConstants.ORDER_UNPAID_KEY, orderIds.toArray());
+            }
+            List<String> keys = new ArrayList<>(Arrays.asList(RedisConstants.SECKILL_STOCK_KEY + voucherId,
+                    RedisConstants.SECKILL_META_KEY + voucherId, "seckill:order:" + voucherId, "seckill:lease:" + voucherId));
+            for (int i = 0; i < hmdpProperties.getSeckill().getStockShards(); i++) {
+                keys.add(RedisConstants.SECKILL_STOCK_KEY + voucherId + ":" + i);
+            }
+            stringRedisTemplate.delete(keys);
+        }
+    }
 }